@@ -0,0 +1,37 @@
+package lox.lox;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/*
+Loads the Lox workloads the benchmarks run. They are packaged under
+/scripts on the benchmark classpath from bench/scripts.
+ */
+class BenchmarkScripts {
+	static final String[] WORKLOADS = {
+		"fib", "binary_trees", "method_calls",
+		"fields", "string_concat", "closures", "tail_calls",
+		"dispatch"
+	};
+
+	static String load(String workload) throws IOException {
+		String path = "/scripts/" + workload + ".lox";
+		try (InputStream in = BenchmarkScripts.class.getResourceAsStream(path)) {
+			if (in == null) throw new IOException("No benchmark script " + path);
+			return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+		}
+	}
+
+	// Scans, parses and resolves a script, failing loudly on any error.
+	static List<Stmt> compile(String source) {
+		List<Token> tokens = new Scanner(source).scanTokens();
+		List<Stmt> statements = new Parser(tokens).parse();
+		new Resolver().resolve(statements);
+		if (Lox.errors.hadError) {
+			throw new IllegalStateException("Benchmark script has errors.");
+		}
+		return statements;
+	}
+}
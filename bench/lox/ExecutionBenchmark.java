@@ -0,0 +1,77 @@
+package lox.lox;
+
+import lox.vm.VM;
+import lox.vm.VmFunction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+Runs each workload in bench/scripts on each execution engine. The script is
+scanned, parsed, resolved (and compiled, for the VM and the JVM backend)
+once in setup; every invocation then runs it on a fresh interpreter so
+globals don't carry over.
+Run with `-prof gc` to see the allocation rate next to the timings.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExecutionBenchmark {
+	@Param({"fib", "binary_trees", "method_calls",
+			"fields", "string_concat", "closures", "tail_calls",
+			"dispatch"})
+	public String workload;
+
+	@Param({"tree", "specialize", "vm", "jvm"})
+	public String engine;
+
+	private List<Stmt> statements;
+	private VmFunction script;
+	private JvmCode compiled;
+
+	@Setup
+	public void setup() throws IOException {
+		statements = BenchmarkScripts.compile(BenchmarkScripts.load(workload));
+		if (engine.equals("vm")) {
+			script = new Compiler().compile(statements);
+		}
+		if (engine.equals("jvm")) {
+			compiled = JvmCompiler.compileScript(statements);
+		}
+	}
+
+	@Benchmark
+	public void run() {
+		switch (engine) {
+			case "tree":
+				new Interpreter().interpret(statements);
+				break;
+			case "specialize":
+				new Interpreter(true).interpret(statements);
+				break;
+			case "vm":
+				new VM().interpret(script);
+				break;
+			case "jvm":
+				Interpreter interpreter = new Interpreter(false, true);
+				compiled.call(interpreter, interpreter.globals,
+						Interpreter.NO_ARGUMENTS);
+				break;
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package lox.lox;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+Measures the scanning, parsing and resolving stages separately. Each stage
+gets the previous stage's output prepared in setup, so only the stage itself
+is timed. The input is every workload script repeated until it is a few
+thousand lines long.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrontEndBenchmark {
+	private static final int REPEAT = 25;
+
+	private String source;
+	private List<Token> tokens;
+	private List<Stmt> statements;
+
+	@Setup
+	public void setup() throws IOException {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < REPEAT; i++) {
+			for (String workload : BenchmarkScripts.WORKLOADS) {
+				builder.append(BenchmarkScripts.load(workload)).append('\n');
+			}
+		}
+
+		source = builder.toString();
+		tokens = new Scanner(source).scanTokens();
+		statements = BenchmarkScripts.compile(source);
+	}
+
+	@Benchmark
+	public List<Token> scan() {
+		return new Scanner(source).scanTokens();
+	}
+
+	@Benchmark
+	public List<Stmt> parse() {
+		return new Parser(tokens).parse();
+	}
+
+	@Benchmark
+	public List<Stmt> resolve() {
+		new Resolver().resolve(statements);
+		return statements;
+	}
+}
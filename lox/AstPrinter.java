@@ -1,13 +1,21 @@
 package lox.lox;
 
-class AstPrinter implements Expr.Visitor<String> {
+import java.util.ArrayList;
+import java.util.List;
+
+class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
     String print(Expr expr) {
         return expr.accept(this);
     }
 
+    String print(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
     @Override
     public String visitAssignExpr(Expr.Assign expr) {
-        return null;
+//        return null;
+        return parenthesize("= " + expr.name.lexeme, expr.value);
     }
 
     @Override
@@ -19,12 +27,17 @@ class AstPrinter implements Expr.Visitor<String> {
 
     @Override
     public String visitCallExpr(Expr.Call expr) {
-        return null;
+//        return null;
+        List<Expr> parts = new ArrayList<>();
+        parts.add(expr.callee);
+        parts.addAll(expr.arguments);
+        return parenthesize("call", parts.toArray(new Expr[0]));
     }
 
     @Override
     public String visitGetExpr(Expr.Get expr) {
-        return null;
+//        return null;
+        return parenthesize(". " + expr.name.lexeme, expr.object);
     }
 
     @Override
@@ -42,22 +55,27 @@ class AstPrinter implements Expr.Visitor<String> {
 
     @Override
     public String visitLogicalExpr(Expr.Logical expr) {
-        return null;
+//        return null;
+        return parenthesize(expr.operator.lexeme, expr.left, expr.right);
     }
 
     @Override
     public String visitSetExpr(Expr.Set expr) {
-        return null;
+//        return null;
+        return parenthesize("= . " + expr.name.lexeme,
+                            expr.object, expr.value);
     }
 
     @Override
     public String visitSuperExpr(Expr.Super expr) {
-        return null;
+//        return null;
+        return "(super " + expr.method.lexeme + ")";
     }
 
     @Override
     public String visitThisExpr(Expr.This expr) {
-        return null;
+//        return null;
+        return "this";
     }
 
     @Override
@@ -68,7 +86,90 @@ class AstPrinter implements Expr.Visitor<String> {
 
     @Override
     public String visitVariableExpr(Expr.Variable expr) {
-        return null;
+//        return null;
+        return expr.name.lexeme;
+    }
+
+    /*
+    Statements print the same way, so a whole program can be dumped after the
+    Optimizer has rewritten it. Statements inside blocks and bodies go on
+    their own lines, indented by nesting depth.
+     */
+    @Override
+    public String visitBlockStmt(Stmt.Block stmt) {
+        return "(block" + body(stmt.statements) + ")";
+    }
+
+    @Override
+    public String visitClassStmt(Stmt.Class stmt) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("(class ").append(stmt.name.lexeme);
+        if (stmt.superclass != null) {
+            builder.append(" < ").append(stmt.superclass.name.lexeme);
+        }
+        builder.append(body(stmt.methods)).append(")");
+        return builder.toString();
+    }
+
+    @Override
+    public String visitExpressionStmt(Stmt.Expression stmt) {
+        return parenthesize(";", stmt.expression);
+    }
+
+    @Override
+    public String visitFunctionStmt(Stmt.Function stmt) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("(fun ").append(stmt.name.lexeme).append("(");
+        for (int i = 0; i < stmt.params.size(); i++) {
+            if (i > 0) builder.append(" ");
+            builder.append(stmt.params.get(i).lexeme);
+        }
+        builder.append(")").append(body(stmt.body)).append(")");
+        return builder.toString();
+    }
+
+    @Override
+    public String visitIfStmt(Stmt.If stmt) {
+        String result = "(if " + print(stmt.condition) + " " +
+                print(stmt.thenBranch);
+        if (stmt.elseBranch != null) result += " " + print(stmt.elseBranch);
+        return result + ")";
+    }
+
+    @Override
+    public String visitPrintStmt(Stmt.Print stmt) {
+        return parenthesize("print", stmt.expression);
+    }
+
+    @Override
+    public String visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) return "(return)";
+        return parenthesize("return", stmt.value);
+    }
+
+    @Override
+    public String visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer == null) return "(var " + stmt.name.lexeme + ")";
+        return parenthesize("var " + stmt.name.lexeme, stmt.initializer);
+    }
+
+    @Override
+    public String visitWhileStmt(Stmt.While stmt) {
+        return "(while " + print(stmt.condition) + " " + print(stmt.body) + ")";
+    }
+
+    private int depth = 0;
+
+    private String body(List<? extends Stmt> statements) {
+        depth++;
+        StringBuilder builder = new StringBuilder();
+        for (Stmt statement : statements) {
+            builder.append("\n");
+            for (int i = 0; i < depth; i++) builder.append("  ");
+            builder.append(print(statement));
+        }
+        depth--;
+        return builder.toString();
     }
 
     private String parenthesize(String name, Expr... exprs) {
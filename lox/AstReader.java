@@ -0,0 +1,182 @@
+package lox.lox;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+Rebuilds the program AstWriter wrote, resolution data and all, so it can go
+straight to the interpreter. AstWriter stores each distinct name and lexeme
+once, so they come back as one String each, the way the Scanner's symbols
+do, and the equality fast paths that rely on it still hold.
+
+It reads from the buffer's position and leaves it just past the program. A
+node of an unknown kind or a read past the end of the buffer means the data
+is damaged; they throw, and the caller treats that as a cache miss.
+ */
+class AstReader {
+	private static final TokenType[] TOKEN_TYPES = TokenType.values();
+
+	private final ByteBuffer buffer;
+	private String[] strings;
+
+	AstReader(ByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	List<Stmt> read() {
+		strings = new String[count()];
+		for (int i = 0; i < strings.length; i++) {
+			byte[] utf8 = new byte[count()];
+			buffer.get(utf8);
+			strings[i] = new String(utf8, StandardCharsets.UTF_8);
+		}
+
+		return statements();
+	}
+
+	private Expr expr() {
+		byte kind = buffer.get();
+		switch (kind) {
+			case AstWriter.NONE:
+				return null;
+			case CompactAst.ASSIGN: {
+				Expr.Assign expr = new Expr.Assign(token(), expr());
+				expr.depth = buffer.getInt();
+				expr.slot = buffer.getInt();
+				return expr;
+			}
+			case CompactAst.BINARY:
+				return new Expr.Binary(expr(), token(), expr());
+			case CompactAst.CALL: {
+				Expr callee = expr();
+				Token paren = token();
+				List<Expr> arguments = new ArrayList<>();
+				for (int i = count(); i > 0; i--) {
+					arguments.add(expr());
+				}
+				return new Expr.Call(callee, paren, arguments);
+			}
+			case CompactAst.GET:
+				return new Expr.Get(expr(), token());
+			case CompactAst.GROUPING:
+				return new Expr.Grouping(expr());
+			case CompactAst.LITERAL:
+				return new Expr.Literal(value());
+			case CompactAst.LOGICAL:
+				return new Expr.Logical(expr(), token(), expr());
+			case CompactAst.SET:
+				return new Expr.Set(expr(), token(), expr());
+			case CompactAst.SUPER: {
+				Expr.Super expr = new Expr.Super(token(), token());
+				expr.depth = buffer.getInt();
+				expr.slot = buffer.getInt();
+				return expr;
+			}
+			case CompactAst.THIS: {
+				Expr.This expr = new Expr.This(token());
+				expr.depth = buffer.getInt();
+				expr.slot = buffer.getInt();
+				return expr;
+			}
+			case CompactAst.UNARY:
+				return new Expr.Unary(token(), expr());
+			case CompactAst.VARIABLE: {
+				Expr.Variable expr = new Expr.Variable(token());
+				expr.depth = buffer.getInt();
+				expr.slot = buffer.getInt();
+				return expr;
+			}
+			default:
+				throw new IllegalStateException("Unknown expression " + kind + ".");
+		}
+	}
+
+	private Stmt stmt() {
+		byte kind = buffer.get();
+		switch (kind) {
+			case AstWriter.NONE:
+				return null;
+			case CompactAst.BLOCK:
+				return new Stmt.Block(statements());
+			case CompactAst.CLASS: {
+				Token name = token();
+				Expr.Variable superclass = (Expr.Variable)expr();
+				List<Stmt.Function> methods = new ArrayList<>();
+				for (int i = count(); i > 0; i--) {
+					methods.add((Stmt.Function)stmt());
+				}
+				return new Stmt.Class(name, superclass, methods);
+			}
+			case CompactAst.EXPRESSION:
+				return new Stmt.Expression(expr());
+			case CompactAst.FUNCTION: {
+				Token name = token();
+				List<Token> params = new ArrayList<>();
+				for (int i = count(); i > 0; i--) {
+					params.add(token());
+				}
+				Stmt.Function stmt = new Stmt.Function(name, params, statements());
+				stmt.hasClosures = bool();
+				return stmt;
+			}
+			case CompactAst.IF:
+				return new Stmt.If(expr(), stmt(), stmt());
+			case CompactAst.PRINT:
+				return new Stmt.Print(expr());
+			case CompactAst.RETURN: {
+				Stmt.Return stmt = new Stmt.Return(token(), expr());
+				stmt.tailCall = bool();
+				return stmt;
+			}
+			case CompactAst.VAR:
+				return new Stmt.Var(token(), expr());
+			case CompactAst.WHILE:
+				return new Stmt.While(expr(), stmt());
+			default:
+				throw new IllegalStateException("Unknown statement " + kind + ".");
+		}
+	}
+
+	private List<Stmt> statements() {
+		List<Stmt> statements = new ArrayList<>();
+		for (int i = count(); i > 0; i--) {
+			statements.add(stmt());
+		}
+		return statements;
+	}
+
+	private Token token() {
+		TokenType type = TOKEN_TYPES[buffer.get()];
+		String lexeme = strings[buffer.getInt()];
+		Object literal = value();
+		return new Token(type, lexeme, literal, buffer.getInt());
+	}
+
+	private Object value() {
+		byte tag = buffer.get();
+		switch (tag) {
+			case AstWriter.NIL: return null;
+			case AstWriter.FALSE: return false;
+			case AstWriter.TRUE: return true;
+			case AstWriter.NUMBER: return buffer.getDouble();
+			case AstWriter.STRING: return strings[buffer.getInt()];
+			default:
+				throw new IllegalStateException("Unknown value " + tag + ".");
+		}
+	}
+
+	private boolean bool() {
+		return buffer.get() != 0;
+	}
+
+	// A size that has to fit in what is left of the buffer.
+	private int count() {
+		int count = buffer.getInt();
+		if (count < 0 || count > buffer.remaining()) {
+			throw new IllegalStateException("Bad size " + count + ".");
+		}
+		return count;
+	}
+}
@@ -0,0 +1,309 @@
+package lox.lox;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+Serializes a resolved program so AstReader can rebuild the same tree
+without scanning, parsing or resolving it again. Every node is written as
+its kind, numbered as in CompactAst, followed by its fields in the order
+they are declared, including what the Resolver stored on it: the depth and
+slot of each variable, `this` and `super`, which returns are tail calls and
+which functions create closures. A missing child is written as NONE.
+
+Tokens keep their type, lexeme and line, since runtime errors still report
+them. Every string goes through a table written ahead of the nodes, so each
+distinct name or literal is stored once.
+ */
+class AstWriter implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+	static final byte NONE = -1;
+
+	static final byte NIL = 0;
+	static final byte FALSE = 1;
+	static final byte TRUE = 2;
+	static final byte NUMBER = 3;
+	static final byte STRING = 4;
+
+	// The nodes, big-endian like DataOutputStream and ByteBuffer.
+	private byte[] bytes = new byte[4096];
+	private int size = 0;
+	private final List<String> strings = new ArrayList<>();
+	private final Map<String, Integer> stringIndex = new HashMap<>();
+
+	// Writes the string table and then the statements to `target`.
+	void write(List<Stmt> statements, DataOutputStream target)
+			throws IOException {
+		list(statements);
+
+		target.writeInt(strings.size());
+		for (String string : strings) {
+			byte[] utf8 = string.getBytes(StandardCharsets.UTF_8);
+			target.writeInt(utf8.length);
+			target.write(utf8);
+		}
+		target.write(bytes, 0, size);
+	}
+
+	@Override
+	public Void visitAssignExpr(Expr.Assign expr) {
+		put(CompactAst.ASSIGN);
+		token(expr.name);
+		write(expr.value);
+		resolved(expr.depth, expr.slot);
+		return null;
+	}
+
+	@Override
+	public Void visitBinaryExpr(Expr.Binary expr) {
+		put(CompactAst.BINARY);
+		write(expr.left);
+		token(expr.operator);
+		write(expr.right);
+		return null;
+	}
+
+	@Override
+	public Void visitCallExpr(Expr.Call expr) {
+		put(CompactAst.CALL);
+		write(expr.callee);
+		token(expr.paren);
+		integer(expr.arguments.size());
+		for (Expr argument : expr.arguments) {
+			write(argument);
+		}
+		return null;
+	}
+
+	@Override
+	public Void visitGetExpr(Expr.Get expr) {
+		put(CompactAst.GET);
+		write(expr.object);
+		token(expr.name);
+		return null;
+	}
+
+	@Override
+	public Void visitGroupingExpr(Expr.Grouping expr) {
+		put(CompactAst.GROUPING);
+		write(expr.expression);
+		return null;
+	}
+
+	@Override
+	public Void visitLiteralExpr(Expr.Literal expr) {
+		put(CompactAst.LITERAL);
+		value(expr.value);
+		return null;
+	}
+
+	@Override
+	public Void visitLogicalExpr(Expr.Logical expr) {
+		put(CompactAst.LOGICAL);
+		write(expr.left);
+		token(expr.operator);
+		write(expr.right);
+		return null;
+	}
+
+	@Override
+	public Void visitSetExpr(Expr.Set expr) {
+		put(CompactAst.SET);
+		write(expr.object);
+		token(expr.name);
+		write(expr.value);
+		return null;
+	}
+
+	@Override
+	public Void visitSuperExpr(Expr.Super expr) {
+		put(CompactAst.SUPER);
+		token(expr.keyword);
+		token(expr.method);
+		resolved(expr.depth, expr.slot);
+		return null;
+	}
+
+	@Override
+	public Void visitThisExpr(Expr.This expr) {
+		put(CompactAst.THIS);
+		token(expr.keyword);
+		resolved(expr.depth, expr.slot);
+		return null;
+	}
+
+	@Override
+	public Void visitUnaryExpr(Expr.Unary expr) {
+		put(CompactAst.UNARY);
+		token(expr.operator);
+		write(expr.right);
+		return null;
+	}
+
+	@Override
+	public Void visitVariableExpr(Expr.Variable expr) {
+		put(CompactAst.VARIABLE);
+		token(expr.name);
+		resolved(expr.depth, expr.slot);
+		return null;
+	}
+
+	@Override
+	public Void visitBlockStmt(Stmt.Block stmt) {
+		put(CompactAst.BLOCK);
+		list(stmt.statements);
+		return null;
+	}
+
+	@Override
+	public Void visitClassStmt(Stmt.Class stmt) {
+		put(CompactAst.CLASS);
+		token(stmt.name);
+		write(stmt.superclass);
+		list(stmt.methods);
+		return null;
+	}
+
+	@Override
+	public Void visitExpressionStmt(Stmt.Expression stmt) {
+		put(CompactAst.EXPRESSION);
+		write(stmt.expression);
+		return null;
+	}
+
+	@Override
+	public Void visitFunctionStmt(Stmt.Function stmt) {
+		put(CompactAst.FUNCTION);
+		token(stmt.name);
+		integer(stmt.params.size());
+		for (Token param : stmt.params) {
+			token(param);
+		}
+		list(stmt.body);
+		bool(stmt.hasClosures);
+		return null;
+	}
+
+	@Override
+	public Void visitIfStmt(Stmt.If stmt) {
+		put(CompactAst.IF);
+		write(stmt.condition);
+		write(stmt.thenBranch);
+		write(stmt.elseBranch);
+		return null;
+	}
+
+	@Override
+	public Void visitPrintStmt(Stmt.Print stmt) {
+		put(CompactAst.PRINT);
+		write(stmt.expression);
+		return null;
+	}
+
+	@Override
+	public Void visitReturnStmt(Stmt.Return stmt) {
+		put(CompactAst.RETURN);
+		token(stmt.keyword);
+		write(stmt.value);
+		bool(stmt.tailCall);
+		return null;
+	}
+
+	@Override
+	public Void visitVarStmt(Stmt.Var stmt) {
+		put(CompactAst.VAR);
+		token(stmt.name);
+		write(stmt.initializer);
+		return null;
+	}
+
+	@Override
+	public Void visitWhileStmt(Stmt.While stmt) {
+		put(CompactAst.WHILE);
+		write(stmt.condition);
+		write(stmt.body);
+		return null;
+	}
+
+	private void write(Expr expr) {
+		if (expr == null) {
+			put(NONE);
+		} else {
+			expr.accept(this);
+		}
+	}
+
+	private void write(Stmt stmt) {
+		if (stmt == null) {
+			put(NONE);
+		} else {
+			stmt.accept(this);
+		}
+	}
+
+	private void list(List<? extends Stmt> statements) {
+		integer(statements.size());
+		for (Stmt statement : statements) {
+			write(statement);
+		}
+	}
+
+	private void token(Token token) {
+		put((byte)token.type.ordinal());
+		integer(string(token.lexeme));
+		value(token.literal);
+		integer(token.line);
+	}
+
+	private void resolved(int depth, int slot) {
+		integer(depth);
+		integer(slot);
+	}
+
+	private void value(Object value) {
+		if (value == null) {
+			put(NIL);
+		} else if (value instanceof Boolean) {
+			put((Boolean)value ? TRUE : FALSE);
+		} else if (value instanceof Double) {
+			put(NUMBER);
+			long bits = Double.doubleToRawLongBits((Double)value);
+			integer((int)(bits >>> 32));
+			integer((int)bits);
+		} else {
+			put(STRING);
+			integer(string((String)value));
+		}
+	}
+
+	private int string(String string) {
+		Integer index = stringIndex.get(string);
+		if (index == null) {
+			index = strings.size();
+			strings.add(string);
+			stringIndex.put(string, index);
+		}
+		return index;
+	}
+
+	private void put(byte value) {
+		if (size == bytes.length) bytes = Arrays.copyOf(bytes, size * 2);
+		bytes[size++] = value;
+	}
+
+	private void integer(int value) {
+		put((byte)(value >>> 24));
+		put((byte)(value >>> 16));
+		put((byte)(value >>> 8));
+		put((byte)value);
+	}
+
+	private void bool(boolean value) {
+		put((byte)(value ? 1 : 0));
+	}
+}
@@ -0,0 +1,33 @@
+package lox.lox;
+
+/*
+The states an Expr.Binary node goes through when the Interpreter runs in
+specializing mode. A node starts UNINITIALIZED, rewrites itself the first time
+it runs based on the operand types it sees, and drops to GENERIC for good as
+soon as one of those assumptions fails.
+
+The interpreter switches on the node's state before anything else, so a
+specialized node never goes through the checks for statically numeric
+operands or the switch over the operator: it evaluates its operands, checks
+the one assumption it was rewritten for and does its operation.
+ */
+enum BinarySpecialization {
+    UNINITIALIZED,
+
+    // The whole expression is statically numeric.
+    NUMERIC,
+    // A comparison with a statically numeric operand.
+    NUMERIC_COMPARE,
+
+    // Both operands are numbers.
+    DOUBLE_ADD, DOUBLE_SUBTRACT, DOUBLE_MULTIPLY, DOUBLE_DIVIDE,
+    DOUBLE_GREATER, DOUBLE_GREATER_EQUAL, DOUBLE_LESS, DOUBLE_LESS_EQUAL,
+
+    // Both operands are strings.
+    STRING_CONCAT,
+
+    // Equality works on any operands, so it never needs to fall back.
+    EQUAL, NOT_EQUAL,
+
+    GENERIC
+}
@@ -0,0 +1,377 @@
+package lox.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+A compact encoding of a resolved program for scripts too large to keep as a
+tree of Expr/Stmt objects. Nodes are rows in a set of parallel arrays: one
+byte for the kind, three int operands and the source line, so a node costs
+about 17 bytes instead of an object with its own header plus a Token and a
+lexeme string. Children are referred to by row index, child lists (arguments,
+block statements, parameters, methods) are runs in a shared int pool stored
+as [size, item...], and identifiers go through a symbol table so each
+distinct name is stored once.
+
+Operands per kind:
+  ASSIGN     name, value, resolved        BINARY     left, right, operator
+  CALL       callee, arguments            GET        object, name
+  GROUPING   expression                   LITERAL    constant
+  LOGICAL    left, right, operator        SET        object, name, value
+  SUPER      method, -, resolved          THIS       -, -, resolved
+  UNARY      right, -, operator           VARIABLE   name, -, resolved
+  BLOCK      statements                   CLASS      name, superclass, methods
+  EXPRESSION expression                   FUNCTION   name, params, body
+  IF         condition, then, else        PRINT      expression
+  RETURN     value                        VAR        name, initializer
+  WHILE      condition, body
+
+Operators are TokenType ordinals, missing children are -1, and a resolved
+local is packed as depth << 16 | slot (-1 for a global), taken from what the
+Resolver stored on the tree before it was encoded. A local that doesn't fit,
+in a scope with more than 65536 of them, is reported as a compile error.
+ */
+class CompactAst implements Expr.Visitor<Integer>, Stmt.Visitor<Integer> {
+	static final byte ASSIGN = 0;
+	static final byte BINARY = 1;
+	static final byte CALL = 2;
+	static final byte GET = 3;
+	static final byte GROUPING = 4;
+	static final byte LITERAL = 5;
+	static final byte LOGICAL = 6;
+	static final byte SET = 7;
+	static final byte SUPER = 8;
+	static final byte THIS = 9;
+	static final byte UNARY = 10;
+	static final byte VARIABLE = 11;
+	static final byte BLOCK = 12;
+	static final byte CLASS = 13;
+	static final byte EXPRESSION = 14;
+	static final byte FUNCTION = 15;
+	static final byte IF = 16;
+	static final byte PRINT = 17;
+	static final byte RETURN = 18;
+	static final byte VAR = 19;
+	static final byte WHILE = 20;
+
+	byte[] kind = new byte[256];
+	int[] a = new int[256];
+	int[] b = new int[256];
+	int[] c = new int[256];
+	int[] line = new int[256];
+	int count = 0;
+
+	int[] lists = new int[256];
+	private int listsSize = 0;
+
+	private final List<String> names = new ArrayList<>();
+	private final Map<String, Integer> nameIndex = new HashMap<>();
+	private final List<Object> constants = new ArrayList<>();
+	private final Map<Object, Integer> constantIndex = new HashMap<>();
+
+	private int[] statements = new int[16];
+	private int statementCount = 0;
+
+	// Told about the locals the packed encoding can't hold.
+	private final ErrorReporter errors;
+
+	CompactAst() {
+		this(Lox.errors);
+	}
+
+	CompactAst(ErrorReporter errors) {
+		this.errors = errors;
+	}
+
+	/*
+	Encodes a resolved top-level statement and appends it to the program.
+	The caller can drop the tree afterwards; nothing here refers back to it.
+	 */
+	void add(Stmt statement) {
+		int node = encode(statement);
+		if (statementCount == statements.length) {
+			statements = grow(statements);
+		}
+		statements[statementCount++] = node;
+	}
+
+	int statementCount() {
+		return statementCount;
+	}
+
+	int statement(int index) {
+		return statements[index];
+	}
+
+	String name(int index) {
+		return names.get(index);
+	}
+
+	Object constant(int index) {
+		return constants.get(index);
+	}
+
+	int listSize(int list) {
+		return lists[list];
+	}
+
+	int listItem(int list, int index) {
+		return lists[list + 1 + index];
+	}
+
+	static int depth(int resolved) {
+		return resolved >> 16;
+	}
+
+	static int slot(int resolved) {
+		return resolved & 0xffff;
+	}
+
+	@Override
+	public Integer visitAssignExpr(Expr.Assign expr) {
+		int value = encode(expr.value);
+		return node(ASSIGN, name(expr.name), value,
+				resolved(expr.name, expr.depth, expr.slot), expr.name.line);
+	}
+
+	@Override
+	public Integer visitBinaryExpr(Expr.Binary expr) {
+		int left = encode(expr.left);
+		int right = encode(expr.right);
+		return node(BINARY, left, right,
+				expr.operator.type.ordinal(), expr.operator.line);
+	}
+
+	@Override
+	public Integer visitCallExpr(Expr.Call expr) {
+		int callee = encode(expr.callee);
+		int[] arguments = new int[expr.arguments.size()];
+		for (int i = 0; i < arguments.length; i++) {
+			arguments[i] = encode(expr.arguments.get(i));
+		}
+		return node(CALL, callee, list(arguments), 0, expr.paren.line);
+	}
+
+	@Override
+	public Integer visitGetExpr(Expr.Get expr) {
+		int object = encode(expr.object);
+		return node(GET, object, name(expr.name), 0, expr.name.line);
+	}
+
+	@Override
+	public Integer visitGroupingExpr(Expr.Grouping expr) {
+		int expression = encode(expr.expression);
+		return node(GROUPING, expression, 0, 0, line[expression]);
+	}
+
+	@Override
+	public Integer visitLiteralExpr(Expr.Literal expr) {
+		return node(LITERAL, constant(expr.value), 0, 0, 0);
+	}
+
+	@Override
+	public Integer visitLogicalExpr(Expr.Logical expr) {
+		int left = encode(expr.left);
+		int right = encode(expr.right);
+		return node(LOGICAL, left, right,
+				expr.operator.type.ordinal(), expr.operator.line);
+	}
+
+	@Override
+	public Integer visitSetExpr(Expr.Set expr) {
+		int object = encode(expr.object);
+		int value = encode(expr.value);
+		return node(SET, object, name(expr.name), value, expr.name.line);
+	}
+
+	@Override
+	public Integer visitSuperExpr(Expr.Super expr) {
+		return node(SUPER, name(expr.method), 0,
+				resolved(expr.method, expr.depth, expr.slot), expr.method.line);
+	}
+
+	@Override
+	public Integer visitThisExpr(Expr.This expr) {
+		return node(THIS, 0, 0,
+				resolved(expr.keyword, expr.depth, expr.slot), expr.keyword.line);
+	}
+
+	@Override
+	public Integer visitUnaryExpr(Expr.Unary expr) {
+		int right = encode(expr.right);
+		return node(UNARY, right, 0,
+				expr.operator.type.ordinal(), expr.operator.line);
+	}
+
+	@Override
+	public Integer visitVariableExpr(Expr.Variable expr) {
+		return node(VARIABLE, name(expr.name), 0,
+				resolved(expr.name, expr.depth, expr.slot), expr.name.line);
+	}
+
+	@Override
+	public Integer visitBlockStmt(Stmt.Block stmt) {
+		return node(BLOCK, list(encodeAll(stmt.statements)), 0, 0, 0);
+	}
+
+	@Override
+	public Integer visitClassStmt(Stmt.Class stmt) {
+		int superclass = stmt.superclass == null ? -1 : encode(stmt.superclass);
+		int[] methods = new int[stmt.methods.size()];
+		for (int i = 0; i < methods.length; i++) {
+			methods[i] = encode(stmt.methods.get(i));
+		}
+		return node(CLASS, name(stmt.name), superclass, list(methods),
+				stmt.name.line);
+	}
+
+	@Override
+	public Integer visitExpressionStmt(Stmt.Expression stmt) {
+		return node(EXPRESSION, encode(stmt.expression), 0, 0, 0);
+	}
+
+	@Override
+	public Integer visitFunctionStmt(Stmt.Function stmt) {
+		int[] params = new int[stmt.params.size()];
+		for (int i = 0; i < params.length; i++) {
+			params[i] = name(stmt.params.get(i));
+		}
+		int paramList = list(params);
+		int body = list(encodeAll(stmt.body));
+		return node(FUNCTION, name(stmt.name), paramList, body,
+				stmt.name.line);
+	}
+
+	@Override
+	public Integer visitIfStmt(Stmt.If stmt) {
+		int condition = encode(stmt.condition);
+		int thenBranch = encode(stmt.thenBranch);
+		int elseBranch = stmt.elseBranch == null ? -1 : encode(stmt.elseBranch);
+		return node(IF, condition, thenBranch, elseBranch, 0);
+	}
+
+	@Override
+	public Integer visitPrintStmt(Stmt.Print stmt) {
+		return node(PRINT, encode(stmt.expression), 0, 0, 0);
+	}
+
+	@Override
+	public Integer visitReturnStmt(Stmt.Return stmt) {
+		int value = stmt.value == null ? -1 : encode(stmt.value);
+		return node(RETURN, value, 0, 0, stmt.keyword.line);
+	}
+
+	@Override
+	public Integer visitVarStmt(Stmt.Var stmt) {
+		int initializer = stmt.initializer == null ? -1 : encode(stmt.initializer);
+		return node(VAR, name(stmt.name), initializer, 0, stmt.name.line);
+	}
+
+	@Override
+	public Integer visitWhileStmt(Stmt.While stmt) {
+		int condition = encode(stmt.condition);
+		int body = encode(stmt.body);
+		return node(WHILE, condition, body, 0, 0);
+	}
+
+	private int encode(Expr expr) {
+		return expr.accept(this);
+	}
+
+	private int encode(Stmt stmt) {
+		return stmt.accept(this);
+	}
+
+	private int[] encodeAll(List<Stmt> statements) {
+		int[] nodes = new int[statements.size()];
+		for (int i = 0; i < nodes.length; i++) {
+			nodes[i] = encode(statements.get(i));
+		}
+		return nodes;
+	}
+
+	private int node(byte kind, int a, int b, int c, int line) {
+		if (count == this.kind.length) {
+			byte[] grownKind = new byte[count + (count >> 1)];
+			System.arraycopy(this.kind, 0, grownKind, 0, count);
+			this.kind = grownKind;
+			this.a = grow(this.a);
+			this.b = grow(this.b);
+			this.c = grow(this.c);
+			this.line = grow(this.line);
+		}
+
+		this.kind[count] = kind;
+		this.a[count] = a;
+		this.b[count] = b;
+		this.c[count] = c;
+		this.line[count] = line;
+		return count++;
+	}
+
+	private int list(int[] items) {
+		while (listsSize + items.length + 1 > lists.length) {
+			lists = grow(lists);
+		}
+
+		int start = listsSize;
+		lists[listsSize++] = items.length;
+		for (int item : items) {
+			lists[listsSize++] = item;
+		}
+		return start;
+	}
+
+	private int name(Token token) {
+		Integer index = nameIndex.get(token.lexeme);
+		if (index == null) {
+			index = names.size();
+			names.add(token.lexeme);
+			nameIndex.put(token.lexeme, index);
+		}
+		return index;
+	}
+
+	private int constant(Object value) {
+		// nil can't be a map key, and true/false are cheap enough to repeat.
+		if (!(value instanceof String || value instanceof Double)) {
+			constants.add(value);
+			return constants.size() - 1;
+		}
+
+		Integer index = constantIndex.get(value);
+		if (index == null) {
+			index = constants.size();
+			constants.add(value);
+			constantIndex.put(value, index);
+		}
+		return index;
+	}
+
+	/*
+	A local that doesn't fit the packing is a compile error, reported like
+	the resolver's. The program is never run then, so what is encoded for it
+	doesn't matter.
+	 */
+	private int resolved(Token name, int depth, int slot) {
+		if (depth == -1) return -1;
+		if (slot > 0xffff) {
+			errors.error(name, "Too many local variables in one scope.");
+			return -1;
+		}
+		if (depth > 0x7fff) {
+			errors.error(name, "Too many nested scopes.");
+			return -1;
+		}
+		return depth << 16 | slot;
+	}
+
+	// Grows by half rather than doubling: these get big and are copied whole.
+	private static int[] grow(int[] array) {
+		int[] grown = new int[array.length + (array.length >> 1)];
+		System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
+	}
+}
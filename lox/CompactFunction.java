@@ -0,0 +1,67 @@
+package lox.lox;
+
+import java.util.List;
+
+/*
+A function whose declaration is a FUNCTION node in a CompactAst. It is a
+LoxFunction so classes, instances and `super` treat it like any other method;
+only the parts that touch the declaration are different.
+ */
+class CompactFunction extends LoxFunction {
+	private final CompactInterpreter interpreter;
+	private final int declaration;
+
+	CompactFunction(CompactInterpreter interpreter, int declaration,
+	                Environment closure, boolean isInitializer) {
+		super(null, closure, isInitializer,
+				interpreter.functionKey(declaration));
+		this.interpreter = interpreter;
+		this.declaration = declaration;
+	}
+
+	@Override
+	LoxFunction bind(LoxInstance instance) {
+		if (LoxMetrics.ENABLED) LoxMetrics.BINDS.increment();
+		Environment environment = new Environment(closure);
+		environment.define(instance);
+		return new CompactFunction(interpreter, declaration, environment,
+				isInitializer);
+	}
+
+	@Override
+	String name() {
+		return interpreter.ast.name(interpreter.ast.a[declaration]);
+	}
+
+	@Override
+	public String toString() {
+		return "<fn " + interpreter.ast.name(interpreter.ast.a[declaration]) + ">";
+	}
+
+	@Override
+	public int arity() {
+		return interpreter.ast.listSize(interpreter.ast.b[declaration]);
+	}
+
+	@Override
+	public Object call(Interpreter unused, List<Object> arguments) {
+		return call(unused, arguments.toArray());
+	}
+
+	@Override
+	public Object call(Interpreter unused, Object[] arguments) {
+		if (LoxMetrics.ENABLED) LoxMetrics.FUNCTION_CALLS.increment();
+		Environment environment = new Environment(closure, arguments);
+
+		Completion completion = interpreter.executeBlock(
+				interpreter.ast.c[declaration], environment);
+
+		if (isInitializer) return closure.getAt(0, 0);
+		if (completion == Completion.RETURN) {
+			Object value = interpreter.returnValue;
+			interpreter.returnValue = null;
+			return value;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,366 @@
+package lox.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+Walks a CompactAst directly, without turning it back into Expr and Stmt
+objects. It runs against the same globals, environments, classes and
+instances as the tree-walking Interpreter, so the two produce the same
+output and the same errors; it just trades the visitor's virtual dispatch
+for a switch on the node kind.
+ */
+class CompactInterpreter {
+	private static final TokenType[] OPERATORS = TokenType.values();
+
+	final CompactAst ast;
+	private final Interpreter interpreter;
+	private final Environment globals;
+	private Environment environment;
+	// The value of the last `return` that completed with Completion.RETURN.
+	Object returnValue;
+
+	// The node columns, pulled out of the AST once it is complete.
+	private final byte[] kind;
+	private final int[] a;
+	private final int[] b;
+	private final int[] c;
+	private final int[] line;
+	// The LoxFunction.key of each FUNCTION node, made when first needed.
+	private final Object[] functionKeys;
+
+	CompactInterpreter(Interpreter interpreter, CompactAst ast) {
+		this.interpreter = interpreter;
+		this.ast = ast;
+		this.globals = interpreter.globals;
+		this.environment = globals;
+		this.kind = ast.kind;
+		this.a = ast.a;
+		this.b = ast.b;
+		this.c = ast.c;
+		this.line = ast.line;
+		this.functionKeys = new Object[ast.count];
+	}
+
+	/*
+	A function's declaration is a node index rather than an object, so its
+	closures share this object instead.
+	 */
+	Object functionKey(int node) {
+		Object key = functionKeys[node];
+		if (key == null) {
+			key = new Object();
+			functionKeys[node] = key;
+		}
+		return key;
+	}
+
+	void interpret() {
+		try {
+			for (int i = 0; i < ast.statementCount(); i++) {
+				execute(ast.statement(i));
+			}
+		} catch (RuntimeError error) {
+			interpreter.output.flush();
+			interpreter.errors.runtimeError(error);
+		}
+	}
+
+	Completion executeBlock(int statements, Environment environment) {
+		Environment previous = this.environment;
+		try {
+			this.environment = environment;
+
+			int size = ast.listSize(statements);
+			for (int i = 0; i < size; i++) {
+				if (execute(ast.listItem(statements, i)) == Completion.RETURN) {
+					return Completion.RETURN;
+				}
+			}
+			return Completion.NORMAL;
+		} finally {
+			this.environment = previous;
+		}
+	}
+
+	// See Completion for how a `return` gets back out to its function.
+	private Completion execute(int node) {
+		if (LoxMetrics.ENABLED) LoxMetrics.STATEMENTS.increment();
+		switch (kind[node]) {
+			case CompactAst.BLOCK:
+				return executeBlock(a[node], new Environment(environment));
+			case CompactAst.CLASS:
+				executeClass(node);
+				return Completion.NORMAL;
+			case CompactAst.EXPRESSION:
+				evaluate(a[node]);
+				return Completion.NORMAL;
+			case CompactAst.FUNCTION:
+				environment.define(ast.name(a[node]),
+						new CompactFunction(this, node, environment, false));
+				return Completion.NORMAL;
+			case CompactAst.IF:
+				if (Interpreter.isTruthy(evaluate(a[node]))) {
+					return execute(b[node]);
+				} else if (c[node] != -1) {
+					return execute(c[node]);
+				}
+				return Completion.NORMAL;
+			case CompactAst.PRINT:
+				interpreter.output.println(
+						Interpreter.stringify(evaluate(a[node])));
+				return Completion.NORMAL;
+			case CompactAst.RETURN:
+				returnValue = a[node] == -1 ? null : evaluate(a[node]);
+				return Completion.RETURN;
+			case CompactAst.VAR:
+				environment.define(ast.name(a[node]),
+						b[node] == -1 ? null : evaluate(b[node]));
+				return Completion.NORMAL;
+			case CompactAst.WHILE:
+				while (Interpreter.isTruthy(evaluate(a[node]))) {
+					if (execute(b[node]) == Completion.RETURN) {
+						return Completion.RETURN;
+					}
+				}
+				return Completion.NORMAL;
+		}
+
+		throw new IllegalStateException("Not a statement: " + kind[node]);
+	}
+
+	private void executeClass(int node) {
+		Object superclass = null;
+		if (b[node] != -1) {
+			superclass = evaluate(b[node]);
+			if (!(superclass instanceof LoxClass)) {
+				throw error(b[node], "Superclass must be a class.");
+			}
+
+			environment = new Environment(environment);
+			environment.define("super", superclass);
+		}
+
+		Map<String, LoxFunction> methods = new HashMap<>();
+		int list = c[node];
+		for (int i = 0; i < ast.listSize(list); i++) {
+			int method = ast.listItem(list, i);
+			String name = ast.name(a[method]);
+			methods.put(name, new CompactFunction(this, method, environment,
+					name.equals("init")));
+		}
+		LoxClass klass = new LoxClass(ast.name(a[node]),
+				(LoxClass)superclass, methods);
+
+		if (superclass != null) {
+			environment = environment.enclosing;
+		}
+
+		environment.define(ast.name(a[node]), klass);
+	}
+
+	private Object evaluate(int node) {
+		switch (kind[node]) {
+			case CompactAst.ASSIGN: {
+				Object value = evaluate(b[node]);
+				int resolved = c[node];
+				if (resolved != -1) {
+					environment.assignAt(CompactAst.depth(resolved),
+							CompactAst.slot(resolved), value);
+				} else {
+					globals.assign(ast.name(a[node]), line[node], value);
+				}
+				return value;
+			}
+			case CompactAst.BINARY:
+				return binary(node, evaluate(a[node]), evaluate(b[node]));
+			case CompactAst.CALL:
+				return call(node);
+			case CompactAst.GET:
+				return get(node);
+			case CompactAst.GROUPING:
+				return evaluate(a[node]);
+			case CompactAst.LITERAL:
+				return ast.constant(a[node]);
+			case CompactAst.LOGICAL: {
+				Object left = evaluate(a[node]);
+				if (OPERATORS[c[node]] == TokenType.OR) {
+					if (Interpreter.isTruthy(left)) return left;
+				} else {
+					if (!Interpreter.isTruthy(left)) return left;
+				}
+				return evaluate(b[node]);
+			}
+			case CompactAst.SET:
+				return set(node);
+			case CompactAst.SUPER:
+				return superMethod(node);
+			case CompactAst.THIS:
+			case CompactAst.VARIABLE: {
+				int resolved = c[node];
+				if (resolved != -1) {
+					return environment.getAt(CompactAst.depth(resolved),
+							CompactAst.slot(resolved));
+				}
+				return globals.get(ast.name(a[node]), line[node]);
+			}
+			case CompactAst.UNARY: {
+				Object right = evaluate(a[node]);
+				if (OPERATORS[c[node]] == TokenType.BANG) {
+					return !Interpreter.isTruthy(right);
+				}
+				if (!(right instanceof Double)) {
+					throw error(node, "Operand must be a number.");
+				}
+				return -(double)right;
+			}
+		}
+
+		throw new IllegalStateException("Not an expression: " + kind[node]);
+	}
+
+	private Object binary(int node, Object left, Object right) {
+		switch (OPERATORS[c[node]]) {
+			case GREATER:
+				checkNumberOperands(node, left, right);
+				return (double)left > (double)right;
+			case GREATER_EQUAL:
+				checkNumberOperands(node, left, right);
+				return (double)left >= (double)right;
+			case LESS:
+				checkNumberOperands(node, left, right);
+				return (double)left < (double)right;
+			case LESS_EQUAL:
+				checkNumberOperands(node, left, right);
+				return (double)left <= (double)right;
+			case MINUS:
+				if (!(right instanceof Double)) {
+					throw error(node, "Operand must be a number.");
+				}
+				checkNumberOperands(node, left, right);
+				return (double)left - (double)right;
+			case PLUS:
+				if (left instanceof Double && right instanceof Double) {
+					return (double)left + (double)right;
+				}
+
+				if (LazyString.isString(left) && LazyString.isString(right)) {
+					return LazyString.concat(left, right);
+				}
+
+				throw error(node, "Operands must be two numbers or two strings");
+			case SLASH:
+				checkNumberOperands(node, left, right);
+				return (double)left / (double)right;
+			case STAR:
+				checkNumberOperands(node, left, right);
+				return (double)left * (double)right;
+			case BANG_EQUAL: return !Interpreter.isEqual(left, right);
+			case EQUAL_EQUAL: return Interpreter.isEqual(left, right);
+		}
+
+		// Unreachable
+		return null;
+	}
+
+	private Object call(int node) {
+		Object callee = evaluate(a[node]);
+
+		int list = b[node];
+		int size = ast.listSize(list);
+		Object[] arguments = Interpreter.NO_ARGUMENTS;
+		if (size > 0) arguments = new Object[size];
+		for (int i = 0; i < size; i++) {
+			arguments[i] = evaluate(ast.listItem(list, i));
+		}
+
+		if (!(callee instanceof LoxCallable)) {
+			throw error(node, "Can only call functions and classes.");
+		}
+
+		LoxCallable function = (LoxCallable)callee;
+		if (size != function.arity()) {
+			throw error(node, "Expected " + function.arity() +
+					" arguments but got " + size + ".");
+		}
+
+		Profiler profiler = interpreter.profiler;
+		if (profiler == null) return function.call(interpreter, arguments);
+
+		profiler.enter(function, line[node]);
+		try {
+			return function.call(interpreter, arguments);
+		} finally {
+			profiler.exit();
+		}
+	}
+
+	private Object get(int node) {
+		Object object = evaluate(a[node]);
+		if (!(object instanceof LoxInstance)) {
+			throw error(node, "Only instances have properties.");
+		}
+
+		LoxInstance instance = (LoxInstance)object;
+		String name = ast.name(b[node]);
+		int slot = instance.shape.slotOf(name);
+		if (slot != -1) return instance.fields[slot];
+
+		// A method or an error, both of which need the token anyway.
+		return instance.get(token(node));
+	}
+
+	private Object set(int node) {
+		Object object = evaluate(a[node]);
+		if (!(object instanceof LoxInstance)) {
+			throw error(node, "Only instances have fields.");
+		}
+
+		Object value = evaluate(c[node]);
+		((LoxInstance)object).set(ast.name(b[node]), value);
+		return value;
+	}
+
+	private Object superMethod(int node) {
+		int distance = CompactAst.depth(c[node]);
+		LoxClass superclass = (LoxClass)environment.getAt(distance, 0);
+		LoxInstance object = (LoxInstance)environment.getAt(distance - 1, 0);
+
+		String name = ast.name(a[node]);
+		LoxFunction method = superclass.findMethod(name);
+		if (method == null) {
+			throw error(node, "Undefined property '" + name + "'.");
+		}
+
+		return method.bind(object);
+	}
+
+	private void checkNumberOperands(int node, Object left, Object right) {
+		if (left instanceof Double && right instanceof Double) return;
+
+		throw error(node, "Operands must be numbers.");
+	}
+
+	/*
+	Tokens aren't kept in the compact tree. Errors only report the line, so
+	one is made up for the node when something actually goes wrong.
+	 */
+	private Token token(int node) {
+		String lexeme = "";
+		switch (kind[node]) {
+			case CompactAst.GET:
+			case CompactAst.SET:
+				lexeme = ast.name(b[node]);
+				break;
+			case CompactAst.VARIABLE:
+			case CompactAst.SUPER:
+				lexeme = ast.name(a[node]);
+				break;
+		}
+		return new Token(TokenType.IDENTIFIER, lexeme, null, line[node]);
+	}
+
+	private RuntimeError error(int node, String message) {
+		return new RuntimeError(token(node), message);
+	}
+}
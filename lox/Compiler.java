@@ -0,0 +1,442 @@
+package lox.lox;
+
+import lox.vm.Chunk;
+import lox.vm.OpCode;
+import lox.vm.VmFunction;
+
+import java.util.List;
+
+/*
+Compiles a resolved syntax tree into bytecode for the VM in lox.vm. It runs
+after the Resolver and reuses its work: variable nodes already carry their
+(depth, slot) pair, and the VM lays out its environments exactly like the
+Interpreter does, so those pairs are emitted unchanged. The only thing the
+compiler has to track itself is which slot each declaration lands in, which
+it does the same way the Resolver hands them out.
+ */
+class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+	private enum FunctionType {
+		SCRIPT,
+		FUNCTION,
+		INITIALIZER,
+		METHOD
+	}
+
+	private Chunk chunk = new Chunk();
+	private FunctionType currentFunction = FunctionType.SCRIPT;
+	// 0 while we are compiling top-level code, where variables are globals.
+	private int scopeDepth = 0;
+	// Next free slot in the innermost scope.
+	private int nextSlot = 0;
+	// Blocks entered since the start of the current function body.
+	private int blockDepth = 0;
+	private int line = 1;
+
+	VmFunction compile(List<Stmt> statements) {
+		for (Stmt statement : statements) {
+			compile(statement);
+		}
+
+		emit(OpCode.NIL);
+		emit(OpCode.RETURN);
+		return new VmFunction("script", 0, 0, chunk);
+	}
+
+	@Override
+	public Void visitBlockStmt(Stmt.Block stmt) {
+		int enclosingSlot = nextSlot;
+		scopeDepth++;
+		blockDepth++;
+		nextSlot = 0;
+
+		emit(OpCode.PUSH_ENV, countDeclarations(stmt.statements));
+		for (Stmt statement : stmt.statements) {
+			compile(statement);
+		}
+		emit(OpCode.POP_ENV);
+
+		nextSlot = enclosingSlot;
+		blockDepth--;
+		scopeDepth--;
+		return null;
+	}
+
+	@Override
+	public Void visitClassStmt(Stmt.Class stmt) {
+		line = stmt.name.line;
+		int slot = declare();
+
+		if (stmt.superclass != null) {
+			compile(stmt.superclass);
+			emit(OpCode.PUSH_ENV, 1);
+			emit(OpCode.DEFINE_LOCAL, 0);
+		}
+
+		line = stmt.name.line;
+		emit(OpCode.CLASS, chunk.addConstant(stmt.name.lexeme));
+
+		if (stmt.superclass != null) {
+			line = stmt.superclass.name.line;
+			emit(OpCode.GET_LOCAL, 0, 0);
+			emit(OpCode.INHERIT);
+		}
+
+		for (Stmt.Function method : stmt.methods) {
+			FunctionType type = FunctionType.METHOD;
+			if (method.name.lexeme.equals("init")) {
+				type = FunctionType.INITIALIZER;
+			}
+
+			VmFunction function = function(method, type);
+			line = method.name.line;
+			emit(OpCode.CLOSURE, chunk.addConstant(function));
+			emit(OpCode.METHOD, chunk.addConstant(method.name.lexeme));
+		}
+
+		if (stmt.superclass != null) emit(OpCode.POP_ENV);
+
+		define(stmt.name, slot);
+		return null;
+	}
+
+	@Override
+	public Void visitExpressionStmt(Stmt.Expression stmt) {
+		compile(stmt.expression);
+		emit(OpCode.POP);
+		return null;
+	}
+
+	@Override
+	public Void visitFunctionStmt(Stmt.Function stmt) {
+		line = stmt.name.line;
+		int slot = declare();
+		VmFunction function = function(stmt, FunctionType.FUNCTION);
+
+		line = stmt.name.line;
+		emit(OpCode.CLOSURE, chunk.addConstant(function));
+		define(stmt.name, slot);
+		return null;
+	}
+
+	@Override
+	public Void visitIfStmt(Stmt.If stmt) {
+		compile(stmt.condition);
+		int thenJump = emitJump(OpCode.JUMP_IF_FALSE);
+		emit(OpCode.POP);
+		compile(stmt.thenBranch);
+
+		int elseJump = emitJump(OpCode.JUMP);
+		patchJump(thenJump);
+		emit(OpCode.POP);
+		if (stmt.elseBranch != null) compile(stmt.elseBranch);
+		patchJump(elseJump);
+		return null;
+	}
+
+	@Override
+	public Void visitPrintStmt(Stmt.Print stmt) {
+		compile(stmt.expression);
+		emit(OpCode.PRINT);
+		return null;
+	}
+
+	@Override
+	public Void visitReturnStmt(Stmt.Return stmt) {
+		line = stmt.keyword.line;
+		if (stmt.value != null) {
+			compile(stmt.value);
+		} else {
+			emitDefaultReturnValue();
+		}
+
+		emit(OpCode.RETURN);
+		return null;
+	}
+
+	@Override
+	public Void visitVarStmt(Stmt.Var stmt) {
+		line = stmt.name.line;
+		int slot = declare();
+		if (stmt.initializer != null) {
+			compile(stmt.initializer);
+		} else {
+			emit(OpCode.NIL);
+		}
+
+		define(stmt.name, slot);
+		return null;
+	}
+
+	@Override
+	public Void visitWhileStmt(Stmt.While stmt) {
+		int loopStart = chunk.size();
+		compile(stmt.condition);
+
+		int exitJump = emitJump(OpCode.JUMP_IF_FALSE);
+		emit(OpCode.POP);
+		compile(stmt.body);
+		emit(OpCode.JUMP, loopStart);
+
+		patchJump(exitJump);
+		emit(OpCode.POP);
+		return null;
+	}
+
+	@Override
+	public Void visitAssignExpr(Expr.Assign expr) {
+		compile(expr.value);
+
+		line = expr.name.line;
+		if (expr.depth != -1) {
+			emit(OpCode.SET_LOCAL, expr.depth, expr.slot);
+		} else {
+			emit(OpCode.SET_GLOBAL, chunk.addConstant(expr.name.lexeme));
+		}
+		return null;
+	}
+
+	@Override
+	public Void visitBinaryExpr(Expr.Binary expr) {
+		compile(expr.left);
+		compile(expr.right);
+
+		line = expr.operator.line;
+		switch (expr.operator.type) {
+			case GREATER: emit(OpCode.GREATER); break;
+			case GREATER_EQUAL: emit(OpCode.GREATER_EQUAL); break;
+			case LESS: emit(OpCode.LESS); break;
+			case LESS_EQUAL: emit(OpCode.LESS_EQUAL); break;
+			case MINUS: emit(OpCode.SUBTRACT); break;
+			case PLUS: emit(OpCode.ADD); break;
+			case SLASH: emit(OpCode.DIVIDE); break;
+			case STAR: emit(OpCode.MULTIPLY); break;
+			case BANG_EQUAL: emit(OpCode.NOT_EQUAL); break;
+			case EQUAL_EQUAL: emit(OpCode.EQUAL); break;
+		}
+		return null;
+	}
+
+	@Override
+	public Void visitCallExpr(Expr.Call expr) {
+		compile(expr.callee);
+		for (Expr argument : expr.arguments) {
+			compile(argument);
+		}
+
+		line = expr.paren.line;
+		emit(OpCode.CALL, expr.arguments.size());
+		return null;
+	}
+
+	@Override
+	public Void visitGetExpr(Expr.Get expr) {
+		compile(expr.object);
+
+		line = expr.name.line;
+		emit(OpCode.GET_PROPERTY, chunk.addConstant(expr.name.lexeme));
+		return null;
+	}
+
+	@Override
+	public Void visitGroupingExpr(Expr.Grouping expr) {
+		compile(expr.expression);
+		return null;
+	}
+
+	@Override
+	public Void visitLiteralExpr(Expr.Literal expr) {
+		if (expr.value == null) {
+			emit(OpCode.NIL);
+		} else if (expr.value instanceof Boolean) {
+			emit((boolean) expr.value ? OpCode.TRUE : OpCode.FALSE);
+		} else {
+			emit(OpCode.CONSTANT, chunk.addConstant(expr.value));
+		}
+		return null;
+	}
+
+	/*
+	The left operand stays on the stack as the result if it decides the
+	outcome; otherwise it is popped and the right operand takes its place.
+	 */
+	@Override
+	public Void visitLogicalExpr(Expr.Logical expr) {
+		compile(expr.left);
+
+		if (expr.operator.type == TokenType.OR) {
+			int elseJump = emitJump(OpCode.JUMP_IF_FALSE);
+			int endJump = emitJump(OpCode.JUMP);
+			patchJump(elseJump);
+			emit(OpCode.POP);
+			compile(expr.right);
+			patchJump(endJump);
+		} else {
+			int endJump = emitJump(OpCode.JUMP_IF_FALSE);
+			emit(OpCode.POP);
+			compile(expr.right);
+			patchJump(endJump);
+		}
+		return null;
+	}
+
+	@Override
+	public Void visitSetExpr(Expr.Set expr) {
+		compile(expr.object);
+		compile(expr.value);
+
+		line = expr.name.line;
+		emit(OpCode.SET_PROPERTY, chunk.addConstant(expr.name.lexeme));
+		return null;
+	}
+
+	/*
+	Same trick as the Interpreter: "this" always lives in the environment right
+	inside the one holding "super".
+	 */
+	@Override
+	public Void visitSuperExpr(Expr.Super expr) {
+		line = expr.keyword.line;
+		emit(OpCode.GET_LOCAL, expr.depth - 1, 0);
+		emit(OpCode.GET_LOCAL, expr.depth, 0);
+
+		line = expr.method.line;
+		emit(OpCode.GET_SUPER, chunk.addConstant(expr.method.lexeme));
+		return null;
+	}
+
+	@Override
+	public Void visitThisExpr(Expr.This expr) {
+		line = expr.keyword.line;
+		emit(OpCode.GET_LOCAL, expr.depth, expr.slot);
+		return null;
+	}
+
+	@Override
+	public Void visitUnaryExpr(Expr.Unary expr) {
+		compile(expr.right);
+
+		line = expr.operator.line;
+		switch (expr.operator.type) {
+			case BANG: emit(OpCode.NOT); break;
+			case MINUS: emit(OpCode.NEGATE); break;
+		}
+		return null;
+	}
+
+	@Override
+	public Void visitVariableExpr(Expr.Variable expr) {
+		line = expr.name.line;
+		if (expr.depth != -1) {
+			emit(OpCode.GET_LOCAL, expr.depth, expr.slot);
+		} else {
+			emit(OpCode.GET_GLOBAL, chunk.addConstant(expr.name.lexeme));
+		}
+		return null;
+	}
+
+	private void compile(Stmt stmt) {
+		stmt.accept(this);
+	}
+
+	private void compile(Expr expr) {
+		expr.accept(this);
+	}
+
+	/*
+	Each function gets its own chunk. The parameters and the declarations at
+	the top level of the body share one scope, which becomes the environment
+	the VM creates for every call.
+	 */
+	private VmFunction function(Stmt.Function declaration, FunctionType type) {
+		Chunk enclosingChunk = chunk;
+		FunctionType enclosingFunction = currentFunction;
+		int enclosingSlot = nextSlot;
+		int enclosingBlockDepth = blockDepth;
+
+		chunk = new Chunk();
+		currentFunction = type;
+		scopeDepth++;
+		nextSlot = declaration.params.size();
+		blockDepth = 0;
+
+		for (Stmt statement : declaration.body) {
+			compile(statement);
+		}
+		emitDefaultReturnValue();
+		emit(OpCode.RETURN);
+
+		VmFunction function = new VmFunction(declaration.name.lexeme,
+				declaration.params.size(),
+				declaration.params.size() + countDeclarations(declaration.body),
+				chunk);
+
+		chunk = enclosingChunk;
+		currentFunction = enclosingFunction;
+		scopeDepth--;
+		nextSlot = enclosingSlot;
+		blockDepth = enclosingBlockDepth;
+		return function;
+	}
+
+	/*
+	An initializer always hands back "this", which sits in the environment
+	just outside the method's own scope.
+	 */
+	private void emitDefaultReturnValue() {
+		if (currentFunction == FunctionType.INITIALIZER) {
+			emit(OpCode.GET_LOCAL, blockDepth + 1, 0);
+		} else {
+			emit(OpCode.NIL);
+		}
+	}
+
+	private int countDeclarations(List<Stmt> statements) {
+		int count = 0;
+		for (Stmt statement : statements) {
+			if (statement instanceof Stmt.Var ||
+					statement instanceof Stmt.Function ||
+					statement instanceof Stmt.Class) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private int declare() {
+		if (scopeDepth == 0) return -1;
+		return nextSlot++;
+	}
+
+	private void define(Token name, int slot) {
+		line = name.line;
+		if (slot == -1) {
+			emit(OpCode.DEFINE_GLOBAL, chunk.addConstant(name.lexeme));
+		} else {
+			emit(OpCode.DEFINE_LOCAL, slot);
+		}
+	}
+
+	private void emit(int op) {
+		chunk.write(op, line);
+	}
+
+	private void emit(int op, int operand) {
+		chunk.write(op, line);
+		chunk.write(operand, line);
+	}
+
+	private void emit(int op, int first, int second) {
+		chunk.write(op, line);
+		chunk.write(first, line);
+		chunk.write(second, line);
+	}
+
+	private int emitJump(int op) {
+		emit(op, -1);
+		return chunk.size() - 1;
+	}
+
+	private void patchJump(int offset) {
+		chunk.patch(offset, chunk.size());
+	}
+}
@@ -0,0 +1,12 @@
+package lox.lox;
+
+/*
+How a statement finished. A `return` doesn't throw its way out of the
+function; it leaves its value with the interpreter and completes with
+RETURN, and every statement that runs other statements stops and passes
+that on, until the function call that started the body picks the value up.
+ */
+enum Completion {
+	NORMAL,
+	RETURN
+}
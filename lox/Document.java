@@ -0,0 +1,369 @@
+package lox.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+A Lox file being edited, kept parsed and resolved between edits. The text
+is split into its top-level declarations, each covering the characters
+from its first token up to the first token of the next one (the first
+covers everything from the start of the file). An edit re-scans and
+re-parses from the declaration it touches, and stops as soon as a new
+declaration starts exactly where an old one after the edit now starts:
+the scanner and parser are back where they were, so every declaration
+from there on is kept, trees, diagnostics and all. Only the declarations
+that were parsed again are resolved again. The top level is where the
+resolver's scopes are empty, so a declaration resolves the same no matter
+what is around it.
+
+A declaration doesn't know where it is. It knows how many characters and
+lines it covers, and the declarations are kept in a treap (a binary tree
+balanced by random priorities) ordered as they are in the text, each node
+holding the sums for its subtree. Where a declaration starts is the sum
+over the ones before it, added up on the way down from the root, so the
+declarations after an edit move without being touched. Finding the
+declaration at an offset or on a line, and swapping the ones that were
+parsed again for the new ones, walk one path down the tree. An edit costs
+O(log n) in the number of declarations plus the work on the text it
+touches. Subtrees also count their diagnostics, so diagnostics() skips
+the ones without any and costs about what it returns.
+
+The lines of a declaration's diagnostics are counted from its first line,
+and so are its tokens' through `lineOrigin`, which keeps them right
+wherever the declaration is moved.
+ */
+final class Document {
+	static final class Declaration {
+		// Characters up to the next declaration, or to the end of the text.
+		private int length;
+		// Newlines in those characters.
+		private int lines;
+		// The line the tokens in `statement` give the declaration's first line.
+		final int lineOrigin;
+		// Null if it couldn't be parsed.
+		final Stmt statement;
+		// With lines counted from the declaration's first line, which is 0.
+		final List<ErrorReporter.Diagnostic> diagnostics;
+
+		private final int priority = ThreadLocalRandom.current().nextInt();
+		private Declaration left;
+		private Declaration right;
+		// Sums over the subtree.
+		private int count;
+		private int totalLength;
+		private int totalLines;
+		private int totalDiagnostics;
+
+		Declaration(int lineOrigin, Stmt statement,
+		            List<ErrorReporter.Diagnostic> diagnostics) {
+			this.lineOrigin = lineOrigin;
+			this.statement = statement;
+			this.diagnostics = diagnostics;
+		}
+	}
+
+	private final GapBuffer text;
+	private Declaration root;
+
+	Document(String text) {
+		this.text = new GapBuffer(text);
+		root = build(parse(0, 0, 0));
+	}
+
+	String text() {
+		return text.toString();
+	}
+
+	int declarationCount() {
+		return count(root);
+	}
+
+	// Where the declaration at the index starts in the text.
+	int start(int index) {
+		locateIndex(index);
+		return locatedStart;
+	}
+
+	// The line the declaration at the index starts on.
+	int line(int index) {
+		locateIndex(index);
+		return locatedLine;
+	}
+
+	/*
+	Replaces the `removed` characters at `offset` with the inserted text and
+	brings the declarations up to date.
+	 */
+	void edit(int offset, int removed, String inserted) {
+		text.replace(offset, offset + removed, inserted);
+
+		/*
+		Parsing starts at the declaration holding the character before the
+		edit, since text typed right after its last token may extend that
+		token, and goes back one more: the parser looks at the first token of
+		the next declaration to decide where the one before it ends, both
+		when it finishes normally and when it is recovering from an error.
+		 */
+		int first = Math.max(0, declarationAt(offset - 1) - 1);
+		int delta = inserted.length() - removed;
+		List<Declaration> parsed;
+		while ((parsed = parse(first, offset + removed, delta)) == null) first--;
+
+		// Everything after what was parsed again is kept where it is.
+		Declaration[] before = split(root, first);
+		Declaration[] after = split(before[1], resumeAt - first);
+		root = merge(merge(before[0], build(parsed)), after[1]);
+	}
+
+	/*
+	The offset of a position given as a 0-based line and character, the way
+	editors give them. It only scans the declaration the line is in.
+	 */
+	int offset(int line, int character) {
+		int target = line + 1;
+		int offset = 0;
+		int current = 1;
+		if (declarationOnLine(target) >= 0) {
+			offset = locatedStart;
+			current = locatedLine;
+		}
+
+		while (current < target && offset < text.length()) {
+			if (text.charAt(offset++) == '\n') current++;
+		}
+		for (int i = 0; i < character && offset < text.length() &&
+				text.charAt(offset) != '\n'; i++) {
+			offset++;
+		}
+		return offset;
+	}
+
+	// The diagnostics of every declaration, with lines in the file.
+	List<ErrorReporter.Diagnostic> diagnostics() {
+		List<ErrorReporter.Diagnostic> all = new ArrayList<>();
+		collectDiagnostics(root, 1, all);
+		return all;
+	}
+
+	// `line` is the line the subtree's first declaration starts on.
+	private static void collectDiagnostics(Declaration node, int line,
+	                                       List<ErrorReporter.Diagnostic> all) {
+		if (node == null || node.totalDiagnostics == 0) return;
+		collectDiagnostics(node.left, line, all);
+		line += lines(node.left);
+		for (ErrorReporter.Diagnostic diagnostic : node.diagnostics) {
+			all.add(new ErrorReporter.Diagnostic(line + diagnostic.line,
+					diagnostic.message));
+		}
+		collectDiagnostics(node.right, line + node.lines, all);
+	}
+
+	// Where the old declarations that were kept begin, set by parse().
+	private int resumeAt;
+
+	/*
+	Parses declarations starting where the one at index `first` does, until
+	the end of the text or until one starts where an old declaration after
+	it now starts, provided that one begins at or after `editEnd` (the end
+	of the replaced text, in old offsets). Then resumeAt is that old
+	declaration's index; otherwise it is past the last one.
+
+	Returns null if the text at the start of `first` no longer begins a
+	token, as when an edit turns the slash there into a comment. That text
+	belongs to the declaration before, so parsing has to start there.
+	 */
+	private List<Declaration> parse(int first, int editEnd, int delta) {
+		int start = 0;
+		int line = 1;
+		int size = count(root);
+		if (first < size) {
+			locateIndex(first);
+			start = locatedStart;
+			line = locatedLine;
+		}
+
+		List<Declaration> parsed = new ArrayList<>();
+		ErrorReporter errors = new ErrorReporter();
+		Scanner scanner = new Scanner(text.from(start), errors);
+		Parser parser = new Parser(scanner, errors);
+		if (first > 0 && (scanner.tokenStart() != 0 || !parser.hasNextDeclaration())) {
+			return null;
+		}
+
+		Resolver resolver = new Resolver(errors);
+		int lineBase = line - 1;
+		int declarationStart = start;
+		int declarationLine = line;
+		int next = first + 1;
+		int nextStart = next < size ? start(next) : 0;
+		resumeAt = size;
+
+		while (parser.hasNextDeclaration()) {
+			int reported = errors.diagnostics().size();
+			Stmt statement = parser.nextDeclaration();
+			boolean syntaxError = errors.diagnostics().size() > reported;
+			if (statement != null && !syntaxError) {
+				resolver.resolve(statement);
+			}
+			List<ErrorReporter.Diagnostic> diagnostics = new ArrayList<>();
+			for (ErrorReporter.Diagnostic diagnostic : errors.diagnostics()
+					.subList(reported, errors.diagnostics().size())) {
+				diagnostics.add(new ErrorReporter.Diagnostic(
+						lineBase + diagnostic.line - declarationLine, diagnostic.message));
+			}
+			Declaration declaration = new Declaration(
+					declarationLine - lineBase, statement, diagnostics);
+			parsed.add(declaration);
+
+			int end = start + scanner.tokenStart();
+			int endLine = lineBase + scanner.tokenLine();
+			declaration.length = end - declarationStart;
+			declaration.lines = endLine - declarationLine;
+			declarationStart = end;
+			declarationLine = endLine;
+
+			while (next < size && nextStart + delta < declarationStart) {
+				if (++next < size) nextStart = start(next);
+			}
+			if (next < size && nextStart >= editEnd &&
+					nextStart + delta == declarationStart) {
+				resumeAt = next;
+				break;
+			}
+		}
+
+		return parsed;
+	}
+
+	// Set by the locate methods: where the declaration they found starts.
+	private int locatedStart;
+	private int locatedLine;
+
+	// The index of the declaration holding the offset, or -1 if none does.
+	private int declarationAt(int offset) {
+		return locate(offset, true);
+	}
+
+	// The index of the last declaration starting on or before the line.
+	private int declarationOnLine(int line) {
+		return locate(line, false);
+	}
+
+	/*
+	Finds the last declaration whose start offset (or start line, if
+	`byOffset` is false) is at or before `target`.
+	 */
+	private int locate(int target, boolean byOffset) {
+		int found = -1;
+		int index = 0;
+		int start = 0;
+		int line = 1;
+		Declaration node = root;
+		while (node != null) {
+			int nodeIndex = index + count(node.left);
+			int nodeStart = start + length(node.left);
+			int nodeLine = line + lines(node.left);
+			if ((byOffset ? nodeStart : nodeLine) <= target) {
+				found = nodeIndex;
+				locatedStart = nodeStart;
+				locatedLine = nodeLine;
+				index = nodeIndex + 1;
+				start = nodeStart + node.length;
+				line = nodeLine + node.lines;
+				node = node.right;
+			} else {
+				node = node.left;
+			}
+		}
+		return found;
+	}
+
+	private void locateIndex(int target) {
+		int index = 0;
+		int start = 0;
+		int line = 1;
+		Declaration node = root;
+		while (node != null) {
+			int nodeIndex = index + count(node.left);
+			int nodeStart = start + length(node.left);
+			int nodeLine = line + lines(node.left);
+			if (nodeIndex == target) {
+				locatedStart = nodeStart;
+				locatedLine = nodeLine;
+				return;
+			}
+			if (nodeIndex < target) {
+				index = nodeIndex + 1;
+				start = nodeStart + node.length;
+				line = nodeLine + node.lines;
+				node = node.right;
+			} else {
+				node = node.left;
+			}
+		}
+		throw new IndexOutOfBoundsException(target);
+	}
+
+	private static Declaration build(List<Declaration> declarations) {
+		Declaration tree = null;
+		for (Declaration declaration : declarations) {
+			declaration.left = null;
+			declaration.right = null;
+			tree = merge(tree, update(declaration));
+		}
+		return tree;
+	}
+
+	// Every declaration of `left` goes before every one of `right`.
+	private static Declaration merge(Declaration left, Declaration right) {
+		if (left == null) return right;
+		if (right == null) return left;
+		if (left.priority > right.priority) {
+			left.right = merge(left.right, right);
+			return update(left);
+		}
+		right.left = merge(left, right.left);
+		return update(right);
+	}
+
+	// The first `count` declarations of the tree, and the rest.
+	private static Declaration[] split(Declaration node, int count) {
+		if (node == null) return new Declaration[] { null, null };
+		if (count(node.left) < count) {
+			Declaration[] parts = split(node.right, count - count(node.left) - 1);
+			node.right = parts[0];
+			parts[0] = update(node);
+			return parts;
+		}
+		Declaration[] parts = split(node.left, count);
+		node.left = parts[1];
+		parts[1] = update(node);
+		return parts;
+	}
+
+	private static Declaration update(Declaration node) {
+		node.count = count(node.left) + 1 + count(node.right);
+		node.totalLength = length(node.left) + node.length + length(node.right);
+		node.totalLines = lines(node.left) + node.lines + lines(node.right);
+		node.totalDiagnostics = diagnosticCount(node.left) +
+				node.diagnostics.size() + diagnosticCount(node.right);
+		return node;
+	}
+
+	private static int count(Declaration node) {
+		return node == null ? 0 : node.count;
+	}
+
+	private static int length(Declaration node) {
+		return node == null ? 0 : node.totalLength;
+	}
+
+	private static int lines(Declaration node) {
+		return node == null ? 0 : node.totalLines;
+	}
+
+	private static int diagnosticCount(Declaration node) {
+		return node == null ? 0 : node.totalDiagnostics;
+	}
+}
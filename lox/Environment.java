@@ -1,5 +1,6 @@
 package lox.lox;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -11,32 +12,58 @@ class Environment {
 	A final class cannot be extended
 	 */
 	final Environment enclosing;
-	private final Map<String, Object> values = new HashMap<>();
+	/*
+	Only the global environment keeps name-keyed values. Globals can be
+	referenced before they are declared and redefined at the top level, so
+	the resolver can't give them a fixed position. Every other scope is fully
+	known to the resolver, which numbers its variables in declaration order.
+	 */
+	private final Map<String, Object> values;
+	private Object[] slots;
+	private int count = 0;
 
 	// Init the Environment enclosing
 	Environment() {
+		if (LoxMetrics.ENABLED) LoxMetrics.ENVIRONMENTS.increment();
 		enclosing = null;
+		values = new HashMap<>();
+		slots = null;
 	}
 
 	Environment(Environment enclosing) {
+		if (LoxMetrics.ENABLED) LoxMetrics.ENVIRONMENTS.increment();
+		this.enclosing = enclosing;
+		this.values = null;
+		this.slots = new Object[4];
+	}
+
+	/*
+	A function's parameters are the first locals of its body's scope, so the
+	argument array of a call can become the scope's slots as it is.
+	 */
+	Environment(Environment enclosing, Object[] arguments) {
+		if (LoxMetrics.ENABLED) LoxMetrics.ENVIRONMENTS.increment();
 		this.enclosing = enclosing;
+		this.values = null;
+		reset(arguments);
 	}
 
 	Object get(Token name) {
-		if (values.containsKey(name.lexeme)) {
-			return values.get(name.lexeme);
-		}
+		return get(name.lexeme, name.line);
+	}
 
-		/*
-		If the variable isn't found in this environment, we simply try the enclosing one.
-		That in turn does the same thing recursively, so this will ultimately walk the entire chain.
-		If we reach an environment with no enclosing one and still don't find the variable,
-		then we give up and report an error as before.
-		 */
-		if (enclosing != null) return enclosing.get(name);
+	/*
+	The name and line are all a global lookup needs, so callers that don't
+	keep Tokens around (see CompactInterpreter) can skip making one unless
+	there's an error to report.
+	 */
+	Object get(String name, int line) {
+		if (values.containsKey(name)) {
+			return values.get(name);
+		}
 
-		throw new RuntimeError(name,
-				"Undefined variable '" + name.lexeme + "'.");
+		throw new RuntimeError(new Token(TokenType.IDENTIFIER, name, null, line),
+				"Undefined variable '" + name + "'.");
 		/*
 		This is a little more semantically interesting. If the variable is found, it simply returns
 		the value bound to it. But what if it's not? Again, we have a choice:
@@ -47,22 +74,56 @@ class Environment {
 	}
 
 	void assign(Token name, Object value) {
-		if (values.containsKey(name.lexeme)) {
-			values.put(name.lexeme, value);
+		assign(name.lexeme, name.line, value);
+	}
+
+	void assign(String name, int line, Object value) {
+		if (values.containsKey(name)) {
+			values.put(name, value);
 			return;
 		}
 
-		if (enclosing != null) {
-			enclosing.assign(name, value);
+		throw new RuntimeError(new Token(TokenType.IDENTIFIER, name, null, line),
+				"Undefined variable '" + name + ";.");
+	}
+
+	void define(String name, Object value) {
+		if (values != null) {
+			values.put(name, value);
 			return;
 		}
 
-		throw new RuntimeError(name,
-				"Undefined variable '" + name.lexeme + ";.");
+		define(value);
 	}
 
-	void define(String name, Object value) {
-		values.put(name, value);
+	/*
+	A local variable is stored in the next free slot. The interpreter executes
+	the declarations of a scope in the same order the resolver saw them, so the
+	slot a value lands in is exactly the one the resolver handed out.
+	 */
+	void define(Object value) {
+		if (count == slots.length) {
+			Object[] grown = new Object[count * 2];
+			System.arraycopy(slots, 0, grown, 0, count);
+			slots = grown;
+		}
+		slots[count++] = value;
+	}
+
+	// Empties a local scope and defines the given arguments in it.
+	void reset(Object[] arguments) {
+		slots = arguments.length == 0 ? new Object[4] : arguments;
+		count = arguments.length;
+	}
+
+	// The globals by name, or null for a local scope.
+	Map<String, Object> values() {
+		return values;
+	}
+
+	// The values of a local scope, in slot order.
+	Object[] locals() {
+		return Arrays.copyOf(slots, count);
 	}
 
 	Environment ancestor(int distance) {
@@ -75,16 +136,16 @@ class Environment {
 		return environment;
 	}
 
-	Object getAt(int distance, String name) {
-		return ancestor(distance).values.get(name);
+	Object getAt(int distance, int slot) {
+		return ancestor(distance).slots[slot];
 	}
 
 	/*
 	We look up the variable's scope distance. If not found, we assume it's global
 	and handle it the same way as before. Otherwise, we call this new method.
 	 */
-	void assignAt(int distance, Token name, Object value) {
-		ancestor(distance).values.put(name.lexeme, value);
+	void assignAt(int distance, int slot, Object value) {
+		ancestor(distance).slots[slot] = value;
 	}
 
 }
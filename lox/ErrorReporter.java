@@ -0,0 +1,90 @@
+package lox.lox;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+Where the errors of one run go. The scanner, parser, resolver and
+interpreters report to the reporter they were made with instead of to
+global flags, so two runs in the same JVM never see each other's errors.
+
+The command line reports to one that prints each message to System.err as
+it comes in. LoxEngine gives every run its own that keeps the messages, so
+they can be handed back to the caller with the run's result.
+ */
+final class ErrorReporter {
+	// An error as an editor shows it: the line, and the message without it.
+	static final class Diagnostic {
+		final int line;
+		final String message;
+
+		Diagnostic(int line, String message) {
+			this.line = line;
+			this.message = message;
+		}
+	}
+
+	// Null when the messages are only collected.
+	private final PrintStream stream;
+	private final List<String> messages = new ArrayList<>();
+	private final List<Diagnostic> diagnostics = new ArrayList<>();
+
+	boolean hadError = false;
+	boolean hadRuntimeError = false;
+
+	ErrorReporter() {
+		this(null);
+	}
+
+	ErrorReporter(PrintStream stream) {
+		this.stream = stream;
+	}
+
+	void error(int line, String message) {
+		report(line, "", message);
+	}
+
+	void error(Token token, String message) {
+		if (token.type == TokenType.EOF) {
+			report(token.line, " at end", message);
+		} else {
+			report(token.line, " at '" + token.lexeme + "'", message);
+		}
+	}
+
+	void runtimeError(RuntimeError error) {
+		runtimeError(error.getMessage(), error.token.line);
+	}
+
+	void runtimeError(String message, int line) {
+		if (LoxMetrics.ENABLED) LoxMetrics.RUNTIME_ERRORS.increment();
+		add(message + "\n[line " + line + "]", line, message);
+		hadRuntimeError = true;
+	}
+
+	// The messages reported so far, oldest first.
+	List<String> messages() {
+		return messages;
+	}
+
+	// The same errors, with their lines kept apart.
+	List<Diagnostic> diagnostics() {
+		return diagnostics;
+	}
+
+	private void report(int line, String where, String message) {
+		String error = "Error" + where + ": " + message;
+		add("[line " + line + "] " + error, line, error);
+		hadError = true;
+	}
+
+	private void add(String formatted, int line, String message) {
+		if (stream != null) {
+			stream.println(formatted);
+		} else {
+			messages.add(formatted);
+			diagnostics.add(new Diagnostic(line, message));
+		}
+	}
+}
@@ -34,6 +34,8 @@ abstract class Expr {
 
     final Token name;
     final Expr value;
+    int depth = -1;
+    int slot;
   }
 //< expr-assign
 //> expr-binary
@@ -52,6 +54,8 @@ abstract class Expr {
     final Expr left;
     final Token operator;
     final Expr right;
+    BinarySpecialization specialization = BinarySpecialization.UNINITIALIZED;
+    Boolean numeric;
   }
 //< expr-binary
 //> expr-call
@@ -70,6 +74,7 @@ abstract class Expr {
     final Expr callee;
     final Token paren;
     final List<Expr> arguments;
+    LoxCallSite site;
   }
 //< expr-call
 //> expr-get
@@ -86,6 +91,8 @@ abstract class Expr {
 
     final Expr object;
     final Token name;
+    Shape cachedShape;
+    int cachedSlot;
   }
 //< expr-get
 //> expr-grouping
@@ -150,6 +157,9 @@ abstract class Expr {
     final Expr object;
     final Token name;
     final Expr value;
+    Shape cachedShape;
+    Shape cachedTransition;
+    int cachedSlot;
   }
 //< expr-set
 //> expr-super
@@ -166,6 +176,8 @@ abstract class Expr {
 
     final Token keyword;
     final Token method;
+    int depth = -1;
+    int slot;
   }
 //< expr-super
 //> expr-this
@@ -180,6 +192,8 @@ abstract class Expr {
     }
 
     final Token keyword;
+    int depth = -1;
+    int slot;
   }
 //< expr-this
 //> expr-unary
@@ -210,6 +224,8 @@ abstract class Expr {
     }
 
     final Token name;
+    int depth = -1;
+    int slot;
   }
 //< expr-variable
 
@@ -0,0 +1,104 @@
+package lox.lox;
+
+import java.util.Arrays;
+
+/*
+The text of a Document. The characters are kept in one array with a gap
+where the last edit happened, so the typing that follows, which is nearly
+always at or next to the same place, only has to move the gap by a few
+characters instead of shifting the rest of the file. The gap is grown by
+doubling when it fills up.
+ */
+final class GapBuffer implements CharSequence {
+	private char[] chars;
+	private int gapStart;
+	private int gapEnd;
+
+	GapBuffer(String text) {
+		chars = new char[Math.max(16, text.length() * 2)];
+		text.getChars(0, text.length(), chars, 0);
+		gapStart = text.length();
+		gapEnd = chars.length;
+	}
+
+	@Override
+	public int length() {
+		return chars.length - (gapEnd - gapStart);
+	}
+
+	@Override
+	public char charAt(int index) {
+		return index < gapStart ? chars[index] : chars[index + gapEnd - gapStart];
+	}
+
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		StringBuilder builder = new StringBuilder(end - start);
+		for (int i = start; i < end; i++) {
+			builder.append(charAt(i));
+		}
+		return builder.toString();
+	}
+
+	// Replaces the characters from start up to end with the text.
+	void replace(int start, int end, String text) {
+		moveGap(end);
+		gapStart = start;
+		if (text.length() > gapEnd - gapStart) grow(text.length());
+		text.getChars(0, text.length(), chars, gapStart);
+		gapStart += text.length();
+	}
+
+	// The text from an index to the end, without copying it.
+	CharSequence from(int offset) {
+		return new CharSequence() {
+			@Override
+			public int length() {
+				return GapBuffer.this.length() - offset;
+			}
+
+			@Override
+			public char charAt(int index) {
+				return GapBuffer.this.charAt(offset + index);
+			}
+
+			@Override
+			public CharSequence subSequence(int start, int end) {
+				return GapBuffer.this.subSequence(offset + start, offset + end);
+			}
+
+			@Override
+			public String toString() {
+				return subSequence(0, length()).toString();
+			}
+		};
+	}
+
+	@Override
+	public String toString() {
+		return subSequence(0, length()).toString();
+	}
+
+	private void moveGap(int index) {
+		if (index < gapStart) {
+			int count = gapStart - index;
+			System.arraycopy(chars, index, chars, gapEnd - count, count);
+			gapStart -= count;
+			gapEnd -= count;
+		} else if (index > gapStart) {
+			int count = index - gapStart;
+			System.arraycopy(chars, gapEnd, chars, gapStart, count);
+			gapStart += count;
+			gapEnd += count;
+		}
+	}
+
+	private void grow(int needed) {
+		int tail = chars.length - gapEnd;
+		int capacity = Math.max(chars.length * 2, length() + needed + 16);
+		char[] grown = Arrays.copyOf(chars, capacity);
+		System.arraycopy(chars, gapEnd, grown, capacity - tail, tail);
+		chars = grown;
+		gapEnd = capacity - tail;
+	}
+}
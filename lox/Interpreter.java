@@ -1,6 +1,5 @@
 package lox.lox;
 
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -10,7 +9,7 @@ import static lox.lox.TokenType.MINUS;
 // when we use public class, it will be accessed everywhere
 // but a default *class* is project protected
 class Interpreter implements Expr.Visitor<Object>,
-                             Stmt.Visitor<Void> {
+                             Stmt.Visitor<Completion> {
     final Environment globals = new Environment();
     //private Environment environment = new Environment();
     /*
@@ -18,9 +17,56 @@ class Interpreter implements Expr.Visitor<Object>,
     `globals` field holds a fixed reference to the outermost global environment.
      */
     private Environment environment = globals;
-    private final Map<Expr, Integer> locals = new HashMap<>();
+    /*
+    In specializing mode, nodes rewrite themselves on first execution into a
+    version that only handles the operand types they have seen so far.
+     */
+    private final boolean specializing;
+    /*
+    In compiling mode, the script and every function are compiled to JVM
+    bytecode by JvmCompiler before they run, and only walked as a tree if
+    they can't be compiled.
+     */
+    final boolean compiling;
+    // Where `print` writes.
+    final OutputSink output;
+    // Where runtime errors are reported.
+    final ErrorReporter errors;
+    // Keeps the stack of Lox calls when profiling, otherwise null.
+    final Profiler profiler;
+    // Shared by every call that passes no arguments.
+    static final Object[] NO_ARGUMENTS = new Object[0];
+    // The value of the last `return` that completed with Completion.RETURN.
+    Object returnValue;
 
     Interpreter() {
+        this(false);
+    }
+
+    Interpreter(boolean specializing) {
+        this(specializing, false);
+    }
+
+    Interpreter(boolean specializing, boolean compiling) {
+        this(specializing, compiling, OutputSink.standardOutput());
+    }
+
+    Interpreter(boolean specializing, boolean compiling, OutputSink output) {
+        this(specializing, compiling, output, Lox.errors);
+    }
+
+    Interpreter(boolean specializing, boolean compiling, OutputSink output,
+                ErrorReporter errors) {
+        this(specializing, compiling, output, errors, null);
+    }
+
+    Interpreter(boolean specializing, boolean compiling, OutputSink output,
+                ErrorReporter errors, Profiler profiler) {
+        this.specializing = specializing;
+        this.compiling = compiling;
+        this.output = output;
+        this.errors = errors;
+        this.profiler = profiler;
         globals.define("clock", new LoxCallable() {
             @Override
             public int arity() { return 0; }
@@ -57,11 +103,21 @@ class Interpreter implements Expr.Visitor<Object>,
      */
     void interpret(List<Stmt> statements) {
         try {
+            if (compiling) {
+                JvmCode script = JvmCompiler.compileScript(statements);
+                if (script != JvmCompiler.UNCOMPILABLE) {
+                    script.call(this, globals, NO_ARGUMENTS);
+                    return;
+                }
+            }
+
             for (Stmt statement : statements) {
                 execute(statement);
             }
         } catch (RuntimeError error) {
-            Lox.runtimeError(error);
+            // What was printed before the error comes out before it.
+            output.flush();
+            errors.runtimeError(error);
         }
     }
 
@@ -88,23 +144,55 @@ class Interpreter implements Expr.Visitor<Object>,
 
     @Override
     public Object visitSetExpr(Expr.Set expr) {
-        Object object = evaluate(expr.object);
+        LoxInstance instance = fieldOwner(evaluate(expr.object), expr);
+        return setField(instance, evaluate(expr.value), expr);
+    }
 
+    /*
+    The object is checked before the value is evaluated, so the two halves
+    of a property store are separate for code that evaluates the operands
+    itself, like the bytecode JvmCompiler emits.
+     */
+    static LoxInstance fieldOwner(Object object, Expr.Set expr) {
         if (!(object instanceof LoxInstance)) {
             throw new RuntimeError(expr.name,
                     "Only instances have fields.");
         }
 
-        Object value = evaluate(expr.value);
-        ((LoxInstance)object).set(expr.name, value);
+        return (LoxInstance)object;
+    }
+
+    static Object setField(LoxInstance instance, Object value, Expr.Set expr) {
+        /*
+        The inline cache remembers the shape this site last saw and where the
+        field went, including the transition when the store adds the field.
+        A hit skips the name lookup entirely.
+         */
+        if (instance.shape == expr.cachedShape) {
+            if (expr.cachedTransition != instance.shape) {
+                instance.transition(expr.cachedTransition);
+            }
+            instance.fields[expr.cachedSlot] = value;
+            return value;
+        }
+
+        Shape before = instance.shape;
+        instance.set(expr.name, value);
+        expr.cachedShape = before;
+        expr.cachedTransition = instance.shape;
+        expr.cachedSlot = instance.shape.slotOf(expr.name.lexeme);
         return value;
     }
 
     @Override
     public Object visitSuperExpr(Expr.Super expr) {
-        int distance = locals.get(expr);
+        return superMethod(environment, expr.depth, expr);
+    }
+
+    static Object superMethod(Environment environment, int distance,
+                              Expr.Super expr) {
         LoxClass superclass = (LoxClass) environment.getAt(
-                distance, "super");
+                distance, 0);
 
         /*
         Unfortunately, inside the `super` expression, we don't have a convenient node
@@ -114,7 +202,7 @@ class Interpreter implements Expr.Visitor<Object>,
         where we store "super".
          */
         LoxInstance object = (LoxInstance) environment.getAt(
-                distance - 1, "this");
+                distance - 1, 0);
 
         LoxFunction method = superclass.findMethod(expr.method.lexeme);
 
@@ -128,7 +216,7 @@ class Interpreter implements Expr.Visitor<Object>,
 
     @Override
     public Object visitThisExpr(Expr.This expr) {
-        return lookUpVariable(expr.keyword, expr);
+        return lookUpVariable(expr.keyword, expr.depth, expr.slot);
     }
 
     /*
@@ -142,19 +230,133 @@ class Interpreter implements Expr.Visitor<Object>,
     // Evaluating unary expressions
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
+        if (expr.operator.type == MINUS) return evaluateDouble(expr);
+
         Object right = evaluate(expr.right);
 
         switch (expr.operator.type) {
             case BANG:
                 return !isTruthy(right);
-            case MINUS:
-                return -(double)right;
         }
 
         // Unreachable
         return null;
     }
 
+    /*
+    Arithmetic on numbers always produces a number or a runtime error. So an
+    expression built from number literals, negation, `-`, `*`, `/`, and `+`
+    with at least one such operand is known to be a number before it runs.
+    Those are evaluated through evaluateDouble(), which keeps intermediate
+    results primitive and only boxes the value that leaves the expression.
+     */
+    static boolean isNumeric(Expr expr) {
+        if (expr instanceof Expr.Binary) {
+            // The answer never changes, so a binary node remembers it.
+            Expr.Binary binary = (Expr.Binary) expr;
+            if (binary.numeric == null) {
+                switch (binary.operator.type) {
+                    case MINUS:
+                    case STAR:
+                    case SLASH:
+                        binary.numeric = true;
+                        break;
+                    case PLUS:
+                        binary.numeric = isNumeric(binary.left) ||
+                                isNumeric(binary.right);
+                        break;
+                    default:
+                        binary.numeric = false;
+                }
+            }
+            return binary.numeric;
+        }
+        if (expr instanceof Expr.Literal) {
+            return ((Expr.Literal) expr).value instanceof Double;
+        }
+        if (expr instanceof Expr.Unary) {
+            return ((Expr.Unary) expr).operator.type == MINUS;
+        }
+        if (expr instanceof Expr.Grouping) {
+            return isNumeric(((Expr.Grouping) expr).expression);
+        }
+        return false;
+    }
+
+    // Only valid for expressions isNumeric() accepts.
+    private double evaluateDouble(Expr expr) {
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) expr;
+            double left = leftOperand(binary);
+            double right = rightOperand(binary, left);
+            switch (binary.operator.type) {
+                case MINUS: return left - right;
+                case PLUS: return left + right;
+                case SLASH: return left / right;
+                case STAR: return left * right;
+            }
+        }
+        if (expr instanceof Expr.Literal) {
+            return (double) ((Expr.Literal) expr).value;
+        }
+        if (expr instanceof Expr.Grouping) {
+            return evaluateDouble(((Expr.Grouping) expr).expression);
+        }
+        if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary) expr;
+            if (isNumeric(unary.right)) return -evaluateDouble(unary.right);
+
+            Object right = evaluate(unary.right);
+            checkNumberOperand(unary.operator, right);
+            return -(double)right;
+        }
+
+        // Unreachable
+        return 0;
+    }
+
+    /*
+    An operand that isn't statically numeric is evaluated as usual and
+    unboxed. If it turns out not to be a number, we hand both values to the
+    generic path so the error and the order operands are evaluated in stay
+    exactly the same.
+     */
+    private double leftOperand(Expr.Binary expr) {
+        if (isNumeric(expr.left)) return evaluateDouble(expr.left);
+
+        Object left = evaluate(expr.left);
+        if (left instanceof Double) return (double)left;
+        return operandError(expr, left, evaluate(expr.right));
+    }
+
+    private double rightOperand(Expr.Binary expr, double left) {
+        if (isNumeric(expr.right)) return evaluateDouble(expr.right);
+
+        Object right = evaluate(expr.right);
+        if (right instanceof Double) return (double)right;
+        return operandError(expr, left, right);
+    }
+
+    private double operandError(Expr.Binary expr, Object left, Object right) {
+        executeGeneric(expr.operator, left, right);
+        // Unreachable
+        return 0;
+    }
+
+    private boolean compareDoubles(Expr.Binary expr) {
+        double left = leftOperand(expr);
+        double right = rightOperand(expr, left);
+        switch (expr.operator.type) {
+            case GREATER: return left > right;
+            case GREATER_EQUAL: return left >= right;
+            case LESS: return left < right;
+            case LESS_EQUAL: return left <= right;
+        }
+
+        // Unreachable
+        return false;
+    }
+
     /*
     This simply forwards to the environment which does the heavy lifting to
     make sure the variable is defined. With that, we've got rudimentary varaibles
@@ -164,13 +366,12 @@ class Interpreter implements Expr.Visitor<Object>,
     public Object visitVariableExpr(Expr.Variable expr) {
         //return null;
         //return environment.get(expr.name);
-        return lookUpVariable(expr.name, expr);
+        return lookUpVariable(expr.name, expr.depth, expr.slot);
     }
 
-    private Object lookUpVariable(Token name, Expr expr) {
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            return environment.getAt(distance, name.lexeme);
+    private Object lookUpVariable(Token name, int distance, int slot) {
+        if (distance != -1) {
+            return environment.getAt(distance, slot);
         } else {
             return globals.get(name);
         }
@@ -178,20 +379,36 @@ class Interpreter implements Expr.Visitor<Object>,
 
 
     // Truthiness and falsiness
-    private boolean isTruthy(Object object) {
+    static boolean isTruthy(Object object) {
         if (object == null) return false;
         if (object instanceof Boolean) return (boolean) object;
         return true;
     }
 
-    private boolean isEqual(Object a, Object b) {
-        if (a == null && b == null) return true;
+    static boolean isEqual(Object a, Object b) {
+        // Also catches the same string literal, which the Scanner interned.
+        if (a == b) return true;
         if (a == null) return false;
 
+        // A string is equal to another with the same characters however it
+        // was built.
+        if (a instanceof LazyString) a = a.toString();
+        if (b instanceof LazyString) b = b.toString();
+
+        /*
+        A String caches its hash, so strings that are compared again and
+        again, like the keys of a dispatch chain, are told apart without
+        looking at their characters.
+         */
+        if (a instanceof String && b instanceof String &&
+                a.hashCode() != b.hashCode()) {
+            return false;
+        }
+
         return a.equals(b);
     }
 
-    private String stringify(Object object) {
+    static String stringify(Object object) {
         if (object == null) return "nil";
 
         if (object instanceof Double) {
@@ -208,23 +425,23 @@ class Interpreter implements Expr.Visitor<Object>,
         return expr.accept(this);
     }
 
-    private void execute(Stmt stmt) {
-        stmt.accept(this);
+    private Completion execute(Stmt stmt) {
+        if (LoxMetrics.ENABLED) LoxMetrics.STATEMENTS.increment();
+        return stmt.accept(this);
     }
 
-    void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
-    }
-
-    void executeBlock(List<Stmt> statements,
-                      Environment environment) {
+    Completion executeBlock(List<Stmt> statements,
+                            Environment environment) {
         Environment previous = this.environment;
         try {
             this.environment = environment;
 
             for (Stmt statement : statements) {
-                execute(statement);
+                if (execute(statement) == Completion.RETURN) {
+                    return Completion.RETURN;
+                }
             }
+            return Completion.NORMAL;
         } finally {
             this.environment = previous;
         }
@@ -237,24 +454,36 @@ class Interpreter implements Expr.Visitor<Object>,
     to be executed.
      */
     @Override
-    public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
-        return null;
+    public Completion visitBlockStmt(Stmt.Block stmt) {
+        return executeBlock(stmt.statements, new Environment(environment));
     }
 
     @Override
-    public Void visitClassStmt(Stmt.Class stmt) {
+    public Completion visitClassStmt(Stmt.Class stmt) {
         Object superclass = null;
         if (stmt.superclass != null) {
             superclass = evaluate(stmt.superclass);
+        }
+
+        /*
+        The class is defined only once it exists. Its methods see the name
+        through their closure, and no other variable of this scope is declared
+        in between, so a local class still lands in the slot the resolver gave it.
+         */
+        environment.define(stmt.name.lexeme,
+                createClass(stmt, superclass, environment));
+        return Completion.NORMAL;
+    }
+
+    static LoxClass createClass(Stmt.Class stmt, Object superclass,
+                                Environment environment) {
+        if (stmt.superclass != null) {
             if(!(superclass instanceof LoxClass)) {
                 throw new RuntimeError(stmt.superclass.name,
                         "Superclass must be a class.");
             }
         }
 
-        environment.define(stmt.name.lexeme, null);
-
         if (stmt.superclass != null) {
             environment = new Environment(environment);
             environment.define("super", superclass);
@@ -272,12 +501,7 @@ class Interpreter implements Expr.Visitor<Object>,
         LoxClass klass = new LoxClass(stmt.name.lexeme,
                 (LoxClass)superclass, methods);
 
-        if (superclass != null) {
-            environment = environment.enclosing;
-        }
-
-        environment.assign(stmt.name, klass);
-        return null;
+        return klass;
     }
 
     private Object evaluate(Expr.Variable superclass) {
@@ -289,45 +513,65 @@ class Interpreter implements Expr.Visitor<Object>,
     having to do with type erasure and this stack.
     Instead, there is a separate `Void` type specifically for this use. Sort of a
     "boxed void", like "Integer" is for "int".
+    Statements return a Completion instead, so that a `return` can get back
+    out to its function without throwing.
      */
     @Override
-    public Void visitExpressionStmt(Stmt.Expression stmt) {
+    public Completion visitExpressionStmt(Stmt.Expression stmt) {
         evaluate(stmt.expression);
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitFunctionStmt(Stmt.Function stmt) {
+    public Completion visitFunctionStmt(Stmt.Function stmt) {
         //LoxFunction function = new LoxFunction(stmt);
         //LoxFunction function = new LoxFunction(stmt, environment);
         LoxFunction function = new LoxFunction(stmt, environment, false);
         environment.define(stmt.name.lexeme, function);
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitIfStmt(Stmt.If stmt) {
+    public Completion visitIfStmt(Stmt.If stmt) {
         if (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.thenBranch);
+            return execute(stmt.thenBranch);
         } else if (stmt.elseBranch != null) {
-            execute(stmt.elseBranch);
+            return execute(stmt.elseBranch);
         }
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitPrintStmt(Stmt.Print stmt) {
+    public Completion visitPrintStmt(Stmt.Print stmt) {
         Object value = evaluate(stmt.expression);
-        System.out.println(stringify(value));
-        return null;
+        output.println(stringify(value));
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitReturnStmt(Stmt.Return stmt) {
+    public Completion visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.tailCall) {
+            returnValue = tailCall((Expr.Call) stmt.value);
+            return Completion.RETURN;
+        }
+
         Object value = null;
         if (stmt.value != null) value = evaluate(stmt.value);
 
-        throw new Return(value);
+        returnValue = value;
+        return Completion.RETURN;
+    }
+
+    /*
+    Evaluates and checks a call the Resolver found in tail position, but
+    leaves making it to LoxFunction.call(), after this function's frames
+    are gone.
+     */
+    private TailCall tailCall(Expr.Call expr) {
+        Object callee = evaluate(expr.callee);
+        Object[] arguments = evaluateArguments(expr.arguments);
+        return new TailCall(LoxCallSite.check(expr.paren, callee, arguments),
+                arguments);
     }
 
 
@@ -337,22 +581,24 @@ class Interpreter implements Expr.Visitor<Object>,
     requiring an initializer.
      */
     @Override
-    public Void visitVarStmt(Stmt.Var stmt) {
+    public Completion visitVarStmt(Stmt.Var stmt) {
         Object value = null;
         if (stmt.initializer != null) {
             value = evaluate(stmt.initializer);
         }
 
         environment.define(stmt.name.lexeme, value);
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitWhileStmt(Stmt.While stmt) {
+    public Completion visitWhileStmt(Stmt.While stmt) {
         while (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.body);
+            if (execute(stmt.body) == Completion.RETURN) {
+                return Completion.RETURN;
+            }
         }
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
@@ -360,9 +606,8 @@ class Interpreter implements Expr.Visitor<Object>,
         Object value = evaluate(expr.value);
         //environment.assign(expr.name, value);
 
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            environment.assignAt(distance, expr.name, value);
+        if (expr.depth != -1) {
+            environment.assignAt(expr.depth, expr.slot, value);
         } else {
             globals.assign(expr.name, value);
         }
@@ -372,47 +617,208 @@ class Interpreter implements Expr.Visitor<Object>,
 
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
+        if (specializing) return executeSpecialized(expr);
+        return evaluateBinary(expr);
+    }
+
+    /*
+    A specialized node goes straight to the code for the one case it was
+    rewritten for, checks that the operands still fit it and skips the switch
+    over the operator. When they don't, the node rewrites itself to GENERIC
+    and never tries to specialize again.
+     */
+    private Object executeSpecialized(Expr.Binary expr) {
+        switch (expr.specialization) {
+            case NUMERIC:
+                return evaluateDouble(expr);
+            case NUMERIC_COMPARE:
+                return compareDoubles(expr);
+            case GENERIC:
+                return evaluateBinary(expr);
+            case UNINITIALIZED:
+                return specialize(expr);
+            default:
+                return executeTyped(expr);
+        }
+    }
+
+    // The specializations that assume the types of both operands.
+    private Object executeTyped(Expr.Binary expr) {
         Object left = evaluate(expr.left);
         Object right = evaluate(expr.right);
+        switch (expr.specialization) {
+            case DOUBLE_ADD:
+                if (left instanceof Double && right instanceof Double) {
+                    return (double)left + (double)right;
+                }
+                break;
+            case DOUBLE_SUBTRACT:
+                if (left instanceof Double && right instanceof Double) {
+                    return (double)left - (double)right;
+                }
+                break;
+            case DOUBLE_MULTIPLY:
+                if (left instanceof Double && right instanceof Double) {
+                    return (double)left * (double)right;
+                }
+                break;
+            case DOUBLE_DIVIDE:
+                if (left instanceof Double && right instanceof Double) {
+                    return (double)left / (double)right;
+                }
+                break;
+            case DOUBLE_GREATER:
+                if (left instanceof Double && right instanceof Double) {
+                    return (double)left > (double)right;
+                }
+                break;
+            case DOUBLE_GREATER_EQUAL:
+                if (left instanceof Double && right instanceof Double) {
+                    return (double)left >= (double)right;
+                }
+                break;
+            case DOUBLE_LESS:
+                if (left instanceof Double && right instanceof Double) {
+                    return (double)left < (double)right;
+                }
+                break;
+            case DOUBLE_LESS_EQUAL:
+                if (left instanceof Double && right instanceof Double) {
+                    return (double)left <= (double)right;
+                }
+                break;
+            case STRING_CONCAT:
+                if (LazyString.isString(left) && LazyString.isString(right)) {
+                    return LazyString.concat(left, right);
+                }
+                break;
+            case EQUAL:
+                return isEqual(left, right);
+            case NOT_EQUAL:
+                return !isEqual(left, right);
+        }
+
+        expr.specialization = BinarySpecialization.GENERIC;
+        return executeGeneric(expr.operator, left, right);
+    }
 
+    /*
+    The first execution picks the specialization. Operands known to be
+    numbers before they run keep the unboxed paths evaluateBinary() takes for
+    them; the others are specialized on the types they turn out to have.
+     */
+    private Object specialize(Expr.Binary expr) {
+        if (isNumeric(expr)) {
+            expr.specialization = BinarySpecialization.NUMERIC;
+            return evaluateDouble(expr);
+        }
+
+        TokenType operator = expr.operator.type;
+        boolean comparison = operator == TokenType.GREATER ||
+                operator == TokenType.GREATER_EQUAL ||
+                operator == TokenType.LESS || operator == TokenType.LESS_EQUAL;
+        if (comparison && (isNumeric(expr.left) || isNumeric(expr.right))) {
+            expr.specialization = BinarySpecialization.NUMERIC_COMPARE;
+            return compareDoubles(expr);
+        }
+
+        Object left = evaluate(expr.left);
+        Object right = evaluate(expr.right);
+        expr.specialization = specialization(operator, left, right);
+        return executeGeneric(expr.operator, left, right);
+    }
+
+    private static BinarySpecialization specialization(TokenType operator,
+                                                       Object left, Object right) {
+        if (operator == TokenType.EQUAL_EQUAL) {
+            return BinarySpecialization.EQUAL;
+        }
+        if (operator == TokenType.BANG_EQUAL) {
+            return BinarySpecialization.NOT_EQUAL;
+        }
+
+        if (LazyString.isString(left) && LazyString.isString(right) &&
+                operator == TokenType.PLUS) {
+            return BinarySpecialization.STRING_CONCAT;
+        }
+
+        // Anything else that would fail the generic type checks stays generic.
+        if (!(left instanceof Double && right instanceof Double)) {
+            return BinarySpecialization.GENERIC;
+        }
+
+        switch (operator) {
+            case PLUS: return BinarySpecialization.DOUBLE_ADD;
+            case MINUS: return BinarySpecialization.DOUBLE_SUBTRACT;
+            case STAR: return BinarySpecialization.DOUBLE_MULTIPLY;
+            case SLASH: return BinarySpecialization.DOUBLE_DIVIDE;
+            case GREATER: return BinarySpecialization.DOUBLE_GREATER;
+            case GREATER_EQUAL: return BinarySpecialization.DOUBLE_GREATER_EQUAL;
+            case LESS: return BinarySpecialization.DOUBLE_LESS;
+            case LESS_EQUAL: return BinarySpecialization.DOUBLE_LESS_EQUAL;
+        }
+
+        return BinarySpecialization.GENERIC;
+    }
+
+    private Object evaluateBinary(Expr.Binary expr) {
+        if (isNumeric(expr)) return evaluateDouble(expr);
+
+        switch (expr.operator.type) {
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL:
+                if (isNumeric(expr.left) || isNumeric(expr.right)) {
+                    return compareDoubles(expr);
+                }
+        }
+
+        Object left = evaluate(expr.left);
+        Object right = evaluate(expr.right);
+
+        return executeGeneric(expr.operator, left, right);
+    }
+
+    static Object executeGeneric(Token operator, Object left, Object right) {
         // there is one we need to notice is that
         // the PLUS operator is special
         // because It can be used to concatenate to string
-        switch (expr.operator.type) {
+        switch (operator.type) {
             case GREATER:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left > (double)right;
             case GREATER_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left >= (double)right;
             case LESS:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left < (double)right;
             case LESS_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left <= (double)right;
             case MINUS:
-                checkNumberOperand(expr.operator, right);
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperand(operator, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left - (double)right;
             case PLUS:
                 if (left instanceof Double && right instanceof Double) {
                     return (double)left + (double)right;
                 }
 
-                if (left instanceof String && right instanceof String) {
-                    return (String)left + (String)right;
+                if (LazyString.isString(left) && LazyString.isString(right)) {
+                    return LazyString.concat(left, right);
                 }
 
-                throw new RuntimeError(expr.operator,
+                throw new RuntimeError(operator,
                         "Operands must be two numbers or two strings");
 
 //                break;
             case SLASH:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left / (double)right;
             case STAR:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left * (double)right;
             case BANG_EQUAL: return !isEqual(left, right);
             case EQUAL_EQUAL: return isEqual(left, right);
@@ -431,61 +837,66 @@ class Interpreter implements Expr.Visitor<Object>,
          */
         Object callee = evaluate(expr.callee);
 
-        List<Object> arguments = new ArrayList<>();
+        //List<Object> arguments = new ArrayList<>();
         /*
         perform the call. We do that by casting the callee to a LoxCallable and then
         invoking a `call()` method on it.
          */
-        for (Expr argument : expr.arguments) {
-            arguments.add(evaluate(argument));
-        }
+        Object[] arguments = evaluateArguments(expr.arguments);
 
         /*
-        we need to check the type ourselves first.
-        we will throw an exception, but now we're throwing our own exception type,
-        one that the interpreter knows to catch and report gracefully.
+        The checks that the callee is callable and takes this many arguments
+        live in the call site. It only runs them the first time it sees a
+        callee, and after that calls it directly.
          */
-        if (!(callee instanceof LoxCallable)) {
-            throw new RuntimeError(expr.paren,
-                    "Can only call functions and classes.");
-        }
+        if (expr.site == null) expr.site = new LoxCallSite(expr.paren);
+        return expr.site.call(callee, arguments, this);
+    }
 
-        LoxCallable function = (LoxCallable) callee;
-        /*
-        before invoking the callable, we check to see if the argument list's length matches
-        the callable's arity.
-         */
-        if (arguments.size() != function.arity()) {
-            throw new RuntimeError(expr.paren, "Expected " +
-                    function.arity() + " arguments but got " +
-                    arguments.size() + ".");
+    // The array is handed to the callee, so every call needs a new one.
+    private Object[] evaluateArguments(List<Expr> expressions) {
+        if (expressions.isEmpty()) return NO_ARGUMENTS;
+
+        Object[] arguments = new Object[expressions.size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = evaluate(expressions.get(i));
         }
-        /*
-        We *could* push the arity checking into the concrete implementation of call().
-        But, since we'll have multiple classes implementing LoxCallable, that would end up
-        with redundant validation spread across a few classes.
-        Hoisting it up into the visit method lets us do it in one place.
-         */
-        return function.call(this, arguments);
+        return arguments;
     }
 
     @Override
     public Object visitGetExpr(Expr.Get expr) {
-        Object object = evaluate(expr.object);
+        return getProperty(evaluate(expr.object), expr);
+    }
+
+    static Object getProperty(Object object, Expr.Get expr) {
         if (object instanceof LoxInstance) {
-            return ((LoxInstance) object).get(expr.name);
+            LoxInstance instance = (LoxInstance) object;
+            if (instance.shape == expr.cachedShape) {
+                return instance.fields[expr.cachedSlot];
+            }
+
+            // Only field hits are cached; methods still go through the class.
+            int slot = instance.shape.slotOf(expr.name.lexeme);
+            if (slot != -1) {
+                expr.cachedShape = instance.shape;
+                expr.cachedSlot = slot;
+                return instance.fields[slot];
+            }
+
+            return instance.get(expr.name);
         }
 
         throw new RuntimeError(expr.name,
                 "Only instances have properties.");
     }
 
-    private void checkNumberOperand(Token operator, Object operand) {
+    static void checkNumberOperand(Token operator, Object operand) {
         if (operand instanceof Double) return;
         throw new RuntimeError(operator, "Operand must be a number.");
     }
 
-    private void checkNumberOperands(Token operator, Object left, Object right) {
+    static void checkNumberOperands(Token operator, Object left, Object right) {
         if (left instanceof Double && right instanceof Double) return;
 
         throw new RuntimeError(operator, "Operands must be numbers.");
@@ -0,0 +1,216 @@
+package lox.lox;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+Just enough JSON for the language server's messages. Objects read as
+Maps, arrays as Lists, numbers as Doubles, and true, false and null as
+themselves, which is also what write() takes. A malformed message throws
+IllegalArgumentException.
+ */
+final class Json {
+	private final String text;
+	private int current = 0;
+
+	private Json(String text) {
+		this.text = text;
+	}
+
+	static Object parse(String text) {
+		Json json = new Json(text);
+		Object value = json.value();
+		json.skipWhitespace();
+		if (json.current != text.length()) throw json.error("Trailing data.");
+		return value;
+	}
+
+	static String write(Object value) {
+		StringBuilder out = new StringBuilder();
+		write(value, out);
+		return out.toString();
+	}
+
+	private static void write(Object value, StringBuilder out) {
+		if (value == null) {
+			out.append("null");
+		} else if (value instanceof String) {
+			writeString((String)value, out);
+		} else if (value instanceof Double) {
+			double number = (Double)value;
+			if (number == Math.rint(number) && Math.abs(number) < 1e15) {
+				out.append((long)number);
+			} else {
+				out.append(number);
+			}
+		} else if (value instanceof Number || value instanceof Boolean) {
+			out.append(value);
+		} else if (value instanceof Map) {
+			out.append('{');
+			boolean first = true;
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>)value).entrySet()) {
+				if (!first) out.append(',');
+				first = false;
+				writeString((String)entry.getKey(), out);
+				out.append(':');
+				write(entry.getValue(), out);
+			}
+			out.append('}');
+		} else if (value instanceof List) {
+			out.append('[');
+			boolean first = true;
+			for (Object element : (List<?>)value) {
+				if (!first) out.append(',');
+				first = false;
+				write(element, out);
+			}
+			out.append(']');
+		} else {
+			throw new IllegalArgumentException("Can't write " + value.getClass() + " as JSON.");
+		}
+	}
+
+	private static void writeString(String string, StringBuilder out) {
+		out.append('"');
+		for (int i = 0; i < string.length(); i++) {
+			char c = string.charAt(i);
+			switch (c) {
+				case '"': out.append("\\\""); break;
+				case '\\': out.append("\\\\"); break;
+				case '\n': out.append("\\n"); break;
+				case '\r': out.append("\\r"); break;
+				case '\t': out.append("\\t"); break;
+				default:
+					if (c < 0x20) {
+						out.append(String.format("\\u%04x", (int)c));
+					} else {
+						out.append(c);
+					}
+			}
+		}
+		out.append('"');
+	}
+
+	private Object value() {
+		skipWhitespace();
+		if (current == text.length()) throw error("Expect value.");
+		char c = text.charAt(current);
+		switch (c) {
+			case '{': return object();
+			case '[': return array();
+			case '"': return string();
+			case 't': return literal("true", Boolean.TRUE);
+			case 'f': return literal("false", Boolean.FALSE);
+			case 'n': return literal("null", null);
+			default:
+				if (c == '-' || (c >= '0' && c <= '9')) return number();
+				throw error("Unexpected character.");
+		}
+	}
+
+	private Map<String, Object> object() {
+		Map<String, Object> object = new LinkedHashMap<>();
+		current++;
+		skipWhitespace();
+		if (match('}')) return object;
+		do {
+			skipWhitespace();
+			if (current == text.length() || text.charAt(current) != '"') {
+				throw error("Expect member name.");
+			}
+			String name = string();
+			skipWhitespace();
+			if (!match(':')) throw error("Expect ':' after member name.");
+			object.put(name, value());
+			skipWhitespace();
+		} while (match(','));
+		if (!match('}')) throw error("Expect '}' after members.");
+		return object;
+	}
+
+	private List<Object> array() {
+		List<Object> array = new ArrayList<>();
+		current++;
+		skipWhitespace();
+		if (match(']')) return array;
+		do {
+			array.add(value());
+			skipWhitespace();
+		} while (match(','));
+		if (!match(']')) throw error("Expect ']' after elements.");
+		return array;
+	}
+
+	private String string() {
+		StringBuilder string = new StringBuilder();
+		current++;
+		while (current < text.length()) {
+			char c = text.charAt(current++);
+			if (c == '"') return string.toString();
+			if (c != '\\') {
+				string.append(c);
+				continue;
+			}
+			if (current == text.length()) break;
+			char escape = text.charAt(current++);
+			switch (escape) {
+				case 'b': string.append('\b'); break;
+				case 'f': string.append('\f'); break;
+				case 'n': string.append('\n'); break;
+				case 'r': string.append('\r'); break;
+				case 't': string.append('\t'); break;
+				case 'u':
+					if (current + 4 > text.length()) throw error("Incomplete escape.");
+					try {
+						string.append((char)Integer.parseInt(
+								text.substring(current, current + 4), 16));
+					} catch (NumberFormatException error) {
+						throw error("Invalid escape.");
+					}
+					current += 4;
+					break;
+				default: string.append(escape);
+			}
+		}
+		throw error("Unterminated string.");
+	}
+
+	private Double number() {
+		int start = current;
+		if (text.charAt(current) == '-') current++;
+		while (current < text.length() && "0123456789.eE+-".indexOf(text.charAt(current)) >= 0) {
+			current++;
+		}
+		try {
+			return Double.parseDouble(text.substring(start, current));
+		} catch (NumberFormatException error) {
+			throw error("Invalid number.");
+		}
+	}
+
+	private Object literal(String word, Object value) {
+		if (!text.startsWith(word, current)) throw error("Unexpected character.");
+		current += word.length();
+		return value;
+	}
+
+	private boolean match(char expected) {
+		if (current < text.length() && text.charAt(current) == expected) {
+			current++;
+			return true;
+		}
+		return false;
+	}
+
+	private void skipWhitespace() {
+		while (current < text.length() && Character.isWhitespace(text.charAt(current))) {
+			current++;
+		}
+	}
+
+	private IllegalArgumentException error(String message) {
+		return new IllegalArgumentException(message + " at " + current);
+	}
+}
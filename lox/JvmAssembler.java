@@ -0,0 +1,480 @@
+package lox.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+Just enough of a class file writer for JvmCompiler: a constant pool, a few
+methods, and the instructions the compiler emits. Classes are written as
+version 49 (Java 5), the last version the JVM verifies by type inference,
+so there are no stack map frames to compute. Stack depth is tracked as the
+code is emitted; the compiler only produces structured control flow, so the
+depth at a label is always the depth at the jumps to it.
+
+Anything the format can't hold (a method over 64K, a branch over 32K)
+throws IllegalStateException, and the caller falls back to the tree-walker.
+ */
+class JvmAssembler {
+	static final int ACONST_NULL = 0x01;
+	static final int ICONST_0 = 0x03;
+	static final int ICONST_1 = 0x04;
+	static final int AALOAD = 0x32;
+	static final int AASTORE = 0x53;
+	static final int POP = 0x57;
+	static final int DUP = 0x59;
+	static final int DADD = 0x63;
+	static final int DSUB = 0x67;
+	static final int DMUL = 0x6b;
+	static final int DDIV = 0x6f;
+	static final int DNEG = 0x77;
+	static final int IXOR = 0x82;
+	static final int DCMPL = 0x97;
+	static final int DCMPG = 0x98;
+	static final int IFEQ = 0x99;
+	static final int IFNE = 0x9a;
+	static final int IFLT = 0x9b;
+	static final int IFGE = 0x9c;
+	static final int IFGT = 0x9d;
+	static final int IFLE = 0x9e;
+	static final int GOTO = 0xa7;
+	static final int ARETURN = 0xb0;
+	static final int RETURN = 0xb1;
+	static final int GETSTATIC = 0xb2;
+	static final int PUTSTATIC = 0xb3;
+	static final int GETFIELD = 0xb4;
+	static final int INVOKEVIRTUAL = 0xb6;
+	static final int INVOKESPECIAL = 0xb7;
+	static final int INVOKESTATIC = 0xb8;
+	static final int INVOKEINTERFACE = 0xb9;
+	static final int NEW = 0xbb;
+	static final int ANEWARRAY = 0xbd;
+	static final int CHECKCAST = 0xc0;
+
+	private static final int BIPUSH = 0x10;
+	private static final int SIPUSH = 0x11;
+	private static final int LDC = 0x12;
+	private static final int LDC_W = 0x13;
+	private static final int LDC2_W = 0x14;
+	private static final int DLOAD = 0x18;
+	private static final int ALOAD = 0x19;
+	private static final int DSTORE = 0x39;
+	private static final int ASTORE = 0x3a;
+	private static final int WIDE = 0xc4;
+
+	static final int ACC_PUBLIC = 0x0001;
+	static final int ACC_PRIVATE = 0x0002;
+	static final int ACC_STATIC = 0x0008;
+	static final int ACC_FINAL = 0x0010;
+	private static final int ACC_SUPER = 0x0020;
+
+	private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+	private final DataOutputStream pool = new DataOutputStream(poolBytes);
+	private final Map<String, Integer> poolIndex = new HashMap<>();
+	private int poolCount = 1;
+
+	private final int thisClass;
+	private final int superClass;
+	private final List<Integer> interfaces = new ArrayList<>();
+	private final List<int[]> fields = new ArrayList<>();
+	private final List<Method> methods = new ArrayList<>();
+
+	JvmAssembler(String name, String superName, String... interfaceNames) {
+		thisClass = classConstant(name);
+		superClass = classConstant(superName);
+		for (String interfaceName : interfaceNames) {
+			interfaces.add(classConstant(interfaceName));
+		}
+	}
+
+	void field(int access, String name, String descriptor) {
+		fields.add(new int[] {access, utf8(name), utf8(descriptor)});
+	}
+
+	Method method(int access, String name, String descriptor) {
+		Method method = new Method(access, name, descriptor);
+		methods.add(method);
+		return method;
+	}
+
+	byte[] toByteArray() {
+		try {
+			// Method bodies go first; the Code attribute name joins the pool.
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(body);
+			out.writeShort(ACC_FINAL | ACC_SUPER);
+			out.writeShort(thisClass);
+			out.writeShort(superClass);
+			out.writeShort(interfaces.size());
+			for (int index : interfaces) out.writeShort(index);
+
+			out.writeShort(fields.size());
+			for (int[] field : fields) {
+				out.writeShort(field[0]);
+				out.writeShort(field[1]);
+				out.writeShort(field[2]);
+				out.writeShort(0);
+			}
+
+			int codeName = utf8("Code");
+			out.writeShort(methods.size());
+			for (Method method : methods) method.write(out, codeName);
+			out.writeShort(0);
+
+			if (poolCount > 0xffff) {
+				throw new IllegalStateException("Too many constants.");
+			}
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream file = new DataOutputStream(bytes);
+			file.writeInt(0xCAFEBABE);
+			file.writeShort(0);
+			file.writeShort(49);
+			file.writeShort(poolCount);
+			poolBytes.writeTo(file);
+			body.writeTo(file);
+			return bytes.toByteArray();
+		} catch (IOException error) {
+			// Only in-memory streams are involved.
+			throw new IllegalStateException(error);
+		}
+	}
+
+	private int utf8(String text) {
+		Integer index = poolIndex.get("U" + text);
+		if (index != null) return index;
+
+		try {
+			pool.writeByte(1);
+			pool.writeUTF(text);
+		} catch (IOException error) {
+			throw new IllegalStateException(error);
+		}
+		poolIndex.put("U" + text, poolCount);
+		return poolCount++;
+	}
+
+	private int classConstant(String name) {
+		return reference(7, "C" + name, utf8(name), -1);
+	}
+
+	private int stringConstant(String text) {
+		return reference(8, "S" + text, utf8(text), -1);
+	}
+
+	private int memberConstant(int tag, String owner, String name,
+	                           String descriptor) {
+		int nameAndType = reference(12, "N" + name + ":" + descriptor,
+				utf8(name), utf8(descriptor));
+		return reference(tag, tag + owner + "." + name + ":" + descriptor,
+				classConstant(owner), nameAndType);
+	}
+
+	private int reference(int tag, String key, int first, int second) {
+		Integer index = poolIndex.get(key);
+		if (index != null) return index;
+
+		try {
+			pool.writeByte(tag);
+			pool.writeShort(first);
+			if (second != -1) pool.writeShort(second);
+		} catch (IOException error) {
+			throw new IllegalStateException(error);
+		}
+		poolIndex.put(key, poolCount);
+		return poolCount++;
+	}
+
+	private int number(int tag, String key, long bits) {
+		Integer index = poolIndex.get(key);
+		if (index != null) return index;
+
+		try {
+			pool.writeByte(tag);
+			if (tag == 3) {
+				pool.writeInt((int)bits);
+			} else {
+				pool.writeLong(bits);
+			}
+		} catch (IOException error) {
+			throw new IllegalStateException(error);
+		}
+		poolIndex.put(key, poolCount);
+		int entry = poolCount;
+		// Doubles take up two entries.
+		poolCount += tag == 6 ? 2 : 1;
+		return entry;
+	}
+
+	// The number of stack slots a field or return type takes.
+	private static int size(char type) {
+		if (type == 'V') return 0;
+		if (type == 'D' || type == 'J') return 2;
+		return 1;
+	}
+
+	private static int argumentSlots(String descriptor) {
+		int slots = 0;
+		int i = 1;
+		while (descriptor.charAt(i) != ')') {
+			char type = descriptor.charAt(i);
+			slots += size(type);
+			while (descriptor.charAt(i) == '[') i++;
+			if (descriptor.charAt(i) == 'L') i = descriptor.indexOf(';', i);
+			i++;
+		}
+		return slots;
+	}
+
+	static class Label {
+		private int position = -1;
+		private int stack = -1;
+		// Pairs of (instruction, operand) positions waiting for the label.
+		private final List<int[]> fixups = new ArrayList<>();
+	}
+
+	class Method {
+		private final int access;
+		private final int name;
+		private final int descriptor;
+
+		private byte[] code = new byte[256];
+		private int length = 0;
+		private int stack = 0;
+		private int maxStack = 0;
+		private int maxLocals;
+		private boolean reachable = true;
+
+		private Method(int access, String name, String descriptor) {
+			this.access = access;
+			this.name = utf8(name);
+			this.descriptor = utf8(descriptor);
+			this.maxLocals = argumentSlots(descriptor) +
+					((access & ACC_STATIC) != 0 ? 0 : 1);
+		}
+
+		void op(int opcode) {
+			emit(opcode);
+			switch (opcode) {
+				case ACONST_NULL:
+				case ICONST_0:
+				case ICONST_1:
+				case DUP:
+					push(1);
+					break;
+				case AALOAD:
+				case POP:
+				case IXOR:
+					push(-1);
+					break;
+				case DADD:
+				case DSUB:
+				case DMUL:
+				case DDIV:
+					push(-2);
+					break;
+				case AASTORE:
+				case DCMPL:
+				case DCMPG:
+					push(-3);
+					break;
+				case ARETURN:
+					push(-1);
+					reachable = false;
+					break;
+				case RETURN:
+					reachable = false;
+					break;
+			}
+		}
+
+		void iconst(int value) {
+			if (value >= -1 && value <= 5) {
+				emit(ICONST_0 + value);
+			} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+				emit(BIPUSH);
+				emit(value);
+			} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+				emit(SIPUSH);
+				emit2(value);
+			} else {
+				ldc(number(3, "I" + value, value));
+				return;
+			}
+			push(1);
+		}
+
+		void ldc(String text) {
+			ldc(stringConstant(text));
+		}
+
+		void ldcClass(String name) {
+			ldc(classConstant(name));
+		}
+
+		void ldc(double value) {
+			long bits = Double.doubleToRawLongBits(value);
+			emit(LDC2_W);
+			emit2(number(6, "D" + bits, bits));
+			push(2);
+		}
+
+		private void ldc(int index) {
+			if (index < 256) {
+				emit(LDC);
+				emit(index);
+			} else {
+				emit(LDC_W);
+				emit2(index);
+			}
+			push(1);
+		}
+
+		void aload(int local) {
+			local(ALOAD, local, 1);
+			push(1);
+		}
+
+		void astore(int local) {
+			local(ASTORE, local, 1);
+			push(-1);
+		}
+
+		void dload(int local) {
+			local(DLOAD, local, 2);
+			push(2);
+		}
+
+		void dstore(int local) {
+			local(DSTORE, local, 2);
+			push(-2);
+		}
+
+		private void local(int opcode, int local, int size) {
+			if (local > 0xfffe) throw new IllegalStateException("Too many locals.");
+			maxLocals = Math.max(maxLocals, local + size);
+			if (local < 256) {
+				emit(opcode);
+				emit(local);
+			} else {
+				emit(WIDE);
+				emit(opcode);
+				emit2(local);
+			}
+		}
+
+		void field(int opcode, String owner, String name, String descriptor) {
+			emit(opcode);
+			emit2(memberConstant(9, owner, name, descriptor));
+			int size = size(descriptor.charAt(0));
+			switch (opcode) {
+				case GETSTATIC: push(size); break;
+				case PUTSTATIC: push(-size); break;
+				case GETFIELD: push(size - 1); break;
+			}
+		}
+
+		void invoke(int opcode, String owner, String name, String descriptor) {
+			int arguments = argumentSlots(descriptor);
+			if (opcode == INVOKEINTERFACE) {
+				emit(opcode);
+				emit2(memberConstant(11, owner, name, descriptor));
+				emit(arguments + 1);
+				emit(0);
+			} else {
+				emit(opcode);
+				emit2(memberConstant(10, owner, name, descriptor));
+			}
+
+			if (opcode != INVOKESTATIC) arguments++;
+			push(size(descriptor.charAt(descriptor.indexOf(')') + 1)) - arguments);
+		}
+
+		void type(int opcode, String name) {
+			emit(opcode);
+			emit2(classConstant(name));
+			if (opcode == NEW) push(1);
+		}
+
+		void jump(int opcode, Label label) {
+			if (opcode != GOTO) push(-1);
+			if (label.stack == -1) label.stack = stack;
+
+			int instruction = length;
+			emit(opcode);
+			if (label.position != -1) {
+				emit2(offset(label.position - instruction));
+			} else {
+				label.fixups.add(new int[] {instruction, length});
+				emit2(0);
+			}
+
+			if (opcode == GOTO) reachable = false;
+		}
+
+		void place(Label label) {
+			label.position = length;
+			for (int[] fixup : label.fixups) {
+				int offset = offset(length - fixup[0]);
+				code[fixup[1]] = (byte)(offset >> 8);
+				code[fixup[1] + 1] = (byte)offset;
+			}
+
+			if (!reachable) {
+				stack = Math.max(label.stack, 0);
+				reachable = true;
+			}
+		}
+
+		private int offset(int offset) {
+			if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+				throw new IllegalStateException("Branch too far.");
+			}
+			return offset;
+		}
+
+		private void push(int slots) {
+			stack += slots;
+			if (stack > maxStack) maxStack = stack;
+		}
+
+		private void emit(int value) {
+			if (length == code.length) {
+				if (length >= 0xffff) {
+					throw new IllegalStateException("Method too large.");
+				}
+				byte[] grown = new byte[length * 2];
+				System.arraycopy(code, 0, grown, 0, length);
+				code = grown;
+			}
+			code[length++] = (byte)value;
+		}
+
+		private void emit2(int value) {
+			emit(value >> 8);
+			emit(value);
+		}
+
+		private void write(DataOutputStream out, int codeName)
+				throws IOException {
+			if (length > 0xffff) throw new IllegalStateException("Method too large.");
+
+			out.writeShort(access);
+			out.writeShort(name);
+			out.writeShort(descriptor);
+			out.writeShort(1);
+			out.writeShort(codeName);
+			out.writeInt(12 + length);
+			out.writeShort(maxStack);
+			out.writeShort(maxLocals);
+			out.writeInt(length);
+			out.write(code, 0, length);
+			out.writeShort(0);
+			out.writeShort(0);
+		}
+	}
+}
@@ -0,0 +1,12 @@
+package lox.lox;
+
+/*
+The body of a function, or the whole script, compiled to JVM bytecode by
+JvmCompiler. LoxFunction calls it instead of walking the declaration; the
+closure is the environment the function was declared in (or bound to), and
+the arguments have already been checked against the function's arity.
+ */
+interface JvmCode {
+	Object call(Interpreter interpreter, Environment closure,
+	            Object[] arguments);
+}
@@ -0,0 +1,816 @@
+package lox.lox;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static lox.lox.JvmAssembler.*;
+
+/*
+Compiles a resolved function body, or the top-level script, into a JVM
+class implementing JvmCode, so HotSpot can inline and optimize Lox code
+like any other Java. Each class is defined as a hidden class next to the
+interpreter, which lets it use the package-private runtime directly.
+
+Variables a nested function or class could capture have to stay in real
+Environment objects, because closures hold on to them. So a scope that
+declares a function or class anywhere inside it (outside nested function
+bodies) keeps its variables in an Environment exactly like the
+tree-walker's. Every other scope keeps its variables in JVM locals. All
+scopes around one that declares a function also declare it, so the chain of
+environments a closure sees still has the depth the Resolver counted.
+
+The Tokens and nodes the runtime needs for errors and inline caches are
+passed to the class as class data, an Object[] it loads once into a static
+final field.
+ */
+class JvmCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+	// Marks a declaration that can't be compiled and is always interpreted.
+	static final JvmCode UNCOMPILABLE = (interpreter, closure, arguments) -> {
+		throw new IllegalStateException("Function was not compiled.");
+	};
+
+	private static final String OBJECT = "java/lang/Object";
+	private static final String OBJECT_TYPE = "Ljava/lang/Object;";
+	private static final String ENVIRONMENT = "lox/lox/Environment";
+	private static final String ENVIRONMENT_TYPE = "Llox/lox/Environment;";
+	private static final String INTERPRETER = "lox/lox/Interpreter";
+	private static final String RUNTIME = "lox/lox/JvmRuntime";
+	private static final String TOKEN_TYPE = "Llox/lox/Token;";
+	private static final String METHOD_HANDLE_TYPE =
+			"Ljava/lang/invoke/MethodHandle;";
+	private static final String CALL_TYPE = "(Llox/lox/Interpreter;" +
+			ENVIRONMENT_TYPE + "[" + OBJECT_TYPE + ")" + OBJECT_TYPE;
+
+	// Locals of the compiled call() method.
+	private static final int INTERPRETER_LOCAL = 1;
+	private static final int CLOSURE_LOCAL = 2;
+	private static final int ARGUMENTS_LOCAL = 3;
+
+	private static class Scope {
+		// Local holding the scope's Environment, or -1 if it doesn't need one.
+		final int environment;
+		// The JVM local of each slot when there's no Environment.
+		final List<Integer> locals = new ArrayList<>();
+		// The first JVM local the scope uses, freed when it ends.
+		final int firstLocal;
+
+		Scope(int environment, int firstLocal) {
+			this.environment = environment;
+			this.firstLocal = firstLocal;
+		}
+	}
+
+	private final String className;
+	private final boolean script;
+	private final JvmAssembler assembler;
+	private final JvmAssembler.Method code;
+	private final List<Object> constants = new ArrayList<>();
+	private final Map<Object, Integer> constantIndex = new IdentityHashMap<>();
+	// The constant index of each call site the code calls through.
+	private final List<Integer> callSites = new ArrayList<>();
+	private final List<Scope> scopes = new ArrayList<>();
+	private int nextLocal = ARGUMENTS_LOCAL + 1;
+
+	private JvmCompiler(String name, boolean script) {
+		this.className = "lox/lox/Compiled$" + name;
+		this.script = script;
+		this.assembler = new JvmAssembler(className, OBJECT, "lox/lox/JvmCode");
+		this.code = assembler.method(ACC_PUBLIC, "call", CALL_TYPE);
+	}
+
+	static JvmCode compile(Stmt.Function function) {
+		return new JvmCompiler(function.name.lexeme, false)
+				.compile(function.params.size(), function.body);
+	}
+
+	// Top-level code runs against the globals, passed as the closure.
+	static JvmCode compileScript(List<Stmt> statements) {
+		return new JvmCompiler("script", true).compile(0, statements);
+	}
+
+	private JvmCode compile(int arity, List<Stmt> body) {
+		try {
+			if (!script) beginScope(body, arity);
+			for (Stmt statement : body) {
+				compile(statement);
+			}
+			code.op(ACONST_NULL);
+			code.op(ARETURN);
+
+			return define();
+		} catch (IllegalStateException | LinkageError error) {
+			// Too big for a class file, or rejected by the JVM.
+			return UNCOMPILABLE;
+		}
+	}
+
+	private JvmCode define() {
+		assembler.field(ACC_PRIVATE | ACC_STATIC | ACC_FINAL, "constants",
+				"[" + OBJECT_TYPE);
+
+		JvmAssembler.Method initializer = assembler.method(ACC_PUBLIC,
+				"<init>", "()V");
+		initializer.aload(0);
+		initializer.invoke(INVOKESPECIAL, OBJECT, "<init>", "()V");
+		initializer.op(RETURN);
+
+		JvmAssembler.Method classInitializer = assembler.method(ACC_STATIC,
+				"<clinit>", "()V");
+		classInitializer.invoke(INVOKESTATIC, "java/lang/invoke/MethodHandles",
+				"lookup", "()Ljava/lang/invoke/MethodHandles$Lookup;");
+		classInitializer.ldc("_");
+		classInitializer.ldcClass("[" + OBJECT_TYPE);
+		classInitializer.invoke(INVOKESTATIC, "java/lang/invoke/MethodHandles",
+				"classData", "(Ljava/lang/invoke/MethodHandles$Lookup;" +
+						"Ljava/lang/String;Ljava/lang/Class;)" + OBJECT_TYPE);
+		classInitializer.type(CHECKCAST, "[" + OBJECT_TYPE);
+		classInitializer.field(PUTSTATIC, className, "constants",
+				"[" + OBJECT_TYPE);
+
+		// Each call site's invoker goes in a static final field of its own so
+		// that HotSpot sees it as a constant and can inline the call.
+		for (int i = 0; i < callSites.size(); i++) {
+			assembler.field(ACC_PRIVATE | ACC_STATIC | ACC_FINAL, "site" + i,
+					METHOD_HANDLE_TYPE);
+			classInitializer.field(GETSTATIC, className, "constants",
+					"[" + OBJECT_TYPE);
+			classInitializer.iconst(callSites.get(i));
+			classInitializer.op(AALOAD);
+			classInitializer.type(CHECKCAST, "lox/lox/LoxCallSite");
+			classInitializer.invoke(INVOKEVIRTUAL, "lox/lox/LoxCallSite",
+					"dynamicInvoker", "()" + METHOD_HANDLE_TYPE);
+			classInitializer.field(PUTSTATIC, className, "site" + i,
+					METHOD_HANDLE_TYPE);
+		}
+		classInitializer.op(RETURN);
+
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.lookup()
+					.defineHiddenClassWithClassData(assembler.toByteArray(),
+							constants.toArray(), true);
+			return (JvmCode)lookup.findConstructor(lookup.lookupClass(),
+					MethodType.methodType(void.class)).invoke();
+		} catch (LinkageError | IllegalStateException error) {
+			throw error;
+		} catch (Throwable error) {
+			throw new IllegalStateException(error);
+		}
+	}
+
+	private void compile(Stmt stmt) {
+		if (LoxMetrics.ENABLED) {
+			code.field(GETSTATIC, "lox/lox/LoxMetrics", "STATEMENTS",
+					"Ljava/util/concurrent/atomic/LongAdder;");
+			code.invoke(INVOKEVIRTUAL, "java/util/concurrent/atomic/LongAdder",
+					"increment", "()V");
+		}
+		stmt.accept(this);
+	}
+
+	private void compile(Expr expr) {
+		expr.accept(this);
+	}
+
+	@Override
+	public Void visitBlockStmt(Stmt.Block stmt) {
+		beginScope(stmt.statements, 0);
+		for (Stmt statement : stmt.statements) {
+			compile(statement);
+		}
+		endScope();
+		return null;
+	}
+
+	@Override
+	public Void visitClassStmt(Stmt.Class stmt) {
+		loadEnvironment();
+		code.ldc(stmt.name.lexeme);
+		constant(stmt, "lox/lox/Stmt$Class");
+		if (stmt.superclass != null) {
+			compile(stmt.superclass);
+		} else {
+			code.op(ACONST_NULL);
+		}
+		loadEnvironment();
+		code.invoke(INVOKESTATIC, INTERPRETER, "createClass",
+				"(Llox/lox/Stmt$Class;" + OBJECT_TYPE + ENVIRONMENT_TYPE +
+						")Llox/lox/LoxClass;");
+		code.invoke(INVOKEVIRTUAL, ENVIRONMENT, "define",
+				"(Ljava/lang/String;" + OBJECT_TYPE + ")V");
+		return null;
+	}
+
+	@Override
+	public Void visitExpressionStmt(Stmt.Expression stmt) {
+		compile(stmt.expression);
+		code.op(POP);
+		return null;
+	}
+
+	@Override
+	public Void visitFunctionStmt(Stmt.Function stmt) {
+		loadEnvironment();
+		code.ldc(stmt.name.lexeme);
+		code.type(NEW, "lox/lox/LoxFunction");
+		code.op(DUP);
+		constant(stmt, "lox/lox/Stmt$Function");
+		loadEnvironment();
+		code.op(ICONST_0);
+		code.invoke(INVOKESPECIAL, "lox/lox/LoxFunction", "<init>",
+				"(Llox/lox/Stmt$Function;" + ENVIRONMENT_TYPE + "Z)V");
+		code.invoke(INVOKEVIRTUAL, ENVIRONMENT, "define",
+				"(Ljava/lang/String;" + OBJECT_TYPE + ")V");
+		return null;
+	}
+
+	@Override
+	public Void visitIfStmt(Stmt.If stmt) {
+		JvmAssembler.Label elseBranch = new JvmAssembler.Label();
+		JvmAssembler.Label end = new JvmAssembler.Label();
+
+		compileCondition(stmt.condition);
+		code.jump(IFEQ, elseBranch);
+		compile(stmt.thenBranch);
+		code.jump(GOTO, end);
+		code.place(elseBranch);
+		if (stmt.elseBranch != null) compile(stmt.elseBranch);
+		code.place(end);
+		return null;
+	}
+
+	@Override
+	public Void visitPrintStmt(Stmt.Print stmt) {
+		compile(stmt.expression);
+		code.aload(INTERPRETER_LOCAL);
+		code.invoke(INVOKESTATIC, RUNTIME, "print",
+				"(" + OBJECT_TYPE + "Llox/lox/Interpreter;)V");
+		return null;
+	}
+
+	@Override
+	public Void visitReturnStmt(Stmt.Return stmt) {
+		if (stmt.tailCall) {
+			// The caller's LoxFunction makes the call; see TailCall.
+			Expr.Call call = (Expr.Call)stmt.value;
+			compileCallee(call);
+			constant(call.paren, "lox/lox/Token");
+			code.invoke(INVOKESTATIC, RUNTIME, "tailCall",
+					"(" + OBJECT_TYPE + "[" + OBJECT_TYPE + TOKEN_TYPE + ")" +
+							OBJECT_TYPE);
+		} else if (stmt.value != null) {
+			compile(stmt.value);
+		} else {
+			code.op(ACONST_NULL);
+		}
+		code.op(ARETURN);
+		return null;
+	}
+
+	@Override
+	public Void visitVarStmt(Stmt.Var stmt) {
+		Scope scope = scopes.isEmpty() ? null : scopes.get(scopes.size() - 1);
+		if (scope != null && scope.environment == -1) {
+			compileOrNil(stmt.initializer);
+			int local = nextLocal++;
+			code.astore(local);
+			scope.locals.add(local);
+			return null;
+		}
+
+		loadEnvironment();
+		code.ldc(stmt.name.lexeme);
+		compileOrNil(stmt.initializer);
+		code.invoke(INVOKEVIRTUAL, ENVIRONMENT, "define",
+				"(Ljava/lang/String;" + OBJECT_TYPE + ")V");
+		return null;
+	}
+
+	@Override
+	public Void visitWhileStmt(Stmt.While stmt) {
+		JvmAssembler.Label start = new JvmAssembler.Label();
+		JvmAssembler.Label end = new JvmAssembler.Label();
+
+		code.place(start);
+		compileCondition(stmt.condition);
+		code.jump(IFEQ, end);
+		compile(stmt.body);
+		code.jump(GOTO, start);
+		code.place(end);
+		return null;
+	}
+
+	@Override
+	public Void visitAssignExpr(Expr.Assign expr) {
+		compile(expr.value);
+
+		if (expr.depth == -1) {
+			loadGlobals();
+			constant(expr.name, "lox/lox/Token");
+			code.invoke(INVOKESTATIC, RUNTIME, "assignGlobal",
+					"(" + OBJECT_TYPE + ENVIRONMENT_TYPE + TOKEN_TYPE + ")" +
+							OBJECT_TYPE);
+			return null;
+		}
+
+		if (expr.depth < scopes.size()) {
+			Scope scope = scopes.get(scopes.size() - 1 - expr.depth);
+			if (scope.environment == -1) {
+				code.op(DUP);
+				code.astore(scope.locals.get(expr.slot));
+				return null;
+			}
+			code.aload(scope.environment);
+			code.iconst(0);
+		} else {
+			code.aload(CLOSURE_LOCAL);
+			code.iconst(expr.depth - scopes.size());
+		}
+		code.iconst(expr.slot);
+		code.invoke(INVOKESTATIC, RUNTIME, "assign",
+				"(" + OBJECT_TYPE + ENVIRONMENT_TYPE + "II)" + OBJECT_TYPE);
+		return null;
+	}
+
+	@Override
+	public Void visitBinaryExpr(Expr.Binary expr) {
+		if (Interpreter.isNumeric(expr)) {
+			compileDouble(expr);
+			box("java/lang/Double", "D");
+			return null;
+		}
+
+		switch (expr.operator.type) {
+			case GREATER:
+			case GREATER_EQUAL:
+			case LESS:
+			case LESS_EQUAL:
+			case EQUAL_EQUAL:
+			case BANG_EQUAL:
+				if (compileTest(expr)) {
+					box("java/lang/Boolean", "Z");
+					return null;
+				}
+		}
+
+		compile(expr.left);
+		compile(expr.right);
+		constant(expr.operator, "lox/lox/Token");
+		code.invoke(INVOKESTATIC, RUNTIME, "binary",
+				"(" + OBJECT_TYPE + OBJECT_TYPE + TOKEN_TYPE + ")" + OBJECT_TYPE);
+		return null;
+	}
+
+	@Override
+	public Void visitCallExpr(Expr.Call expr) {
+		if (expr.site == null) expr.site = new LoxCallSite(expr.paren);
+		code.field(GETSTATIC, className, callSite(expr.site), METHOD_HANDLE_TYPE);
+
+		compileCallee(expr);
+		code.aload(INTERPRETER_LOCAL);
+		code.invoke(INVOKEVIRTUAL, "java/lang/invoke/MethodHandle",
+				"invokeExact", LoxCallSite.TYPE.toMethodDescriptorString());
+		return null;
+	}
+
+	// Pushes the callee and an array of the arguments.
+	private void compileCallee(Expr.Call expr) {
+		compile(expr.callee);
+
+		if (expr.arguments.isEmpty()) {
+			code.field(GETSTATIC, INTERPRETER, "NO_ARGUMENTS",
+					"[" + OBJECT_TYPE);
+			return;
+		}
+
+		code.iconst(expr.arguments.size());
+		code.type(ANEWARRAY, OBJECT);
+		for (int i = 0; i < expr.arguments.size(); i++) {
+			code.op(DUP);
+			code.iconst(i);
+			compile(expr.arguments.get(i));
+			code.op(AASTORE);
+		}
+	}
+
+	@Override
+	public Void visitGetExpr(Expr.Get expr) {
+		compile(expr.object);
+		constant(expr, "lox/lox/Expr$Get");
+		code.invoke(INVOKESTATIC, INTERPRETER, "getProperty",
+				"(" + OBJECT_TYPE + "Llox/lox/Expr$Get;)" + OBJECT_TYPE);
+		return null;
+	}
+
+	@Override
+	public Void visitGroupingExpr(Expr.Grouping expr) {
+		compile(expr.expression);
+		return null;
+	}
+
+	@Override
+	public Void visitLiteralExpr(Expr.Literal expr) {
+		if (expr.value == null) {
+			code.op(ACONST_NULL);
+		} else if (expr.value instanceof Boolean) {
+			code.field(GETSTATIC, "java/lang/Boolean",
+					(boolean)expr.value ? "TRUE" : "FALSE", "Ljava/lang/Boolean;");
+		} else if (expr.value instanceof String) {
+			code.ldc((String)expr.value);
+		} else {
+			// Shared, so the number isn't boxed again on every evaluation.
+			constant(expr.value, OBJECT);
+		}
+		return null;
+	}
+
+	@Override
+	public Void visitLogicalExpr(Expr.Logical expr) {
+		JvmAssembler.Label end = new JvmAssembler.Label();
+
+		compile(expr.left);
+		code.op(DUP);
+		code.invoke(INVOKESTATIC, INTERPRETER, "isTruthy",
+				"(" + OBJECT_TYPE + ")Z");
+		code.jump(expr.operator.type == TokenType.OR ? IFNE : IFEQ, end);
+		code.op(POP);
+		compile(expr.right);
+		code.place(end);
+		return null;
+	}
+
+	@Override
+	public Void visitSetExpr(Expr.Set expr) {
+		compile(expr.object);
+		constant(expr, "lox/lox/Expr$Set");
+		code.invoke(INVOKESTATIC, INTERPRETER, "fieldOwner",
+				"(" + OBJECT_TYPE + "Llox/lox/Expr$Set;)Llox/lox/LoxInstance;");
+		compile(expr.value);
+		constant(expr, "lox/lox/Expr$Set");
+		code.invoke(INVOKESTATIC, INTERPRETER, "setField",
+				"(Llox/lox/LoxInstance;" + OBJECT_TYPE + "Llox/lox/Expr$Set;)" +
+						OBJECT_TYPE);
+		return null;
+	}
+
+	@Override
+	public Void visitSuperExpr(Expr.Super expr) {
+		// `super` is always bound outside the method that uses it.
+		if (expr.depth < scopes.size()) {
+			throw new IllegalStateException("Unexpected 'super' scope.");
+		}
+
+		code.aload(CLOSURE_LOCAL);
+		code.iconst(expr.depth - scopes.size());
+		constant(expr, "lox/lox/Expr$Super");
+		code.invoke(INVOKESTATIC, INTERPRETER, "superMethod",
+				"(" + ENVIRONMENT_TYPE + "ILlox/lox/Expr$Super;)" + OBJECT_TYPE);
+		return null;
+	}
+
+	@Override
+	public Void visitThisExpr(Expr.This expr) {
+		loadVariable(expr.keyword, expr.depth, expr.slot);
+		return null;
+	}
+
+	@Override
+	public Void visitUnaryExpr(Expr.Unary expr) {
+		if (expr.operator.type == TokenType.MINUS) {
+			compileDouble(expr);
+			box("java/lang/Double", "D");
+			return null;
+		}
+
+		compileCondition(expr);
+		box("java/lang/Boolean", "Z");
+		return null;
+	}
+
+	@Override
+	public Void visitVariableExpr(Expr.Variable expr) {
+		loadVariable(expr.name, expr.depth, expr.slot);
+		return null;
+	}
+
+	/*
+	Leaves a double on the stack. Only valid for expressions
+	Interpreter.isNumeric() accepts, just like Interpreter.evaluateDouble().
+	 */
+	private void compileDouble(Expr expr) {
+		if (expr instanceof Expr.Binary) {
+			Expr.Binary binary = (Expr.Binary)expr;
+			compileOperands(binary);
+			switch (binary.operator.type) {
+				case MINUS: code.op(DSUB); break;
+				case PLUS: code.op(DADD); break;
+				case SLASH: code.op(DDIV); break;
+				case STAR: code.op(DMUL); break;
+			}
+		} else if (expr instanceof Expr.Literal) {
+			code.ldc((double)((Expr.Literal)expr).value);
+		} else if (expr instanceof Expr.Grouping) {
+			compileDouble(((Expr.Grouping)expr).expression);
+		} else if (expr instanceof Expr.Unary) {
+			Expr.Unary unary = (Expr.Unary)expr;
+			if (Interpreter.isNumeric(unary.right)) {
+				compileDouble(unary.right);
+			} else {
+				compile(unary.right);
+				constant(unary.operator, "lox/lox/Token");
+				code.invoke(INVOKESTATIC, RUNTIME, "number",
+						"(" + OBJECT_TYPE + TOKEN_TYPE + ")D");
+			}
+			code.op(DNEG);
+		}
+	}
+
+	/*
+	Leaves both operands of a numeric operator on the stack as doubles.
+	Both sides are evaluated before either is checked, so a bad operand
+	fails after the same side effects as in the tree-walker.
+	 */
+	private void compileOperands(Expr.Binary expr) {
+		boolean leftNumeric = Interpreter.isNumeric(expr.left);
+		boolean rightNumeric = Interpreter.isNumeric(expr.right);
+		if (leftNumeric && rightNumeric) {
+			compileDouble(expr.left);
+			compileDouble(expr.right);
+			return;
+		}
+
+		int mark = nextLocal;
+		int left = nextLocal;
+		nextLocal += 2;
+		if (leftNumeric) {
+			compileDouble(expr.left);
+			code.dstore(left);
+		} else {
+			compile(expr.left);
+			code.astore(left);
+		}
+
+		int right = nextLocal;
+		nextLocal += 2;
+		if (rightNumeric) {
+			compileDouble(expr.right);
+			code.dstore(right);
+		} else {
+			compile(expr.right);
+			code.astore(right);
+		}
+
+		if (!leftNumeric) {
+			code.aload(left);
+			if (rightNumeric) {
+				code.dload(right);
+			} else {
+				code.aload(right);
+			}
+			constant(expr.operator, "lox/lox/Token");
+			code.invoke(INVOKESTATIC, RUNTIME, "leftNumber", "(" + OBJECT_TYPE +
+					(rightNumeric ? "D" : OBJECT_TYPE) + TOKEN_TYPE + ")D");
+			code.dstore(left);
+		}
+
+		if (!rightNumeric) {
+			code.dload(left);
+			code.aload(right);
+			constant(expr.operator, "lox/lox/Token");
+			code.invoke(INVOKESTATIC, RUNTIME, "rightNumber",
+					"(D" + OBJECT_TYPE + TOKEN_TYPE + ")D");
+			code.dstore(right);
+		}
+
+		code.dload(left);
+		code.dload(right);
+		nextLocal = mark;
+	}
+
+	// Leaves 1 on the stack if the value of the expression is truthy, else 0.
+	private void compileCondition(Expr expr) {
+		if (expr instanceof Expr.Binary && compileTest((Expr.Binary)expr)) {
+			return;
+		}
+
+		if (expr instanceof Expr.Unary &&
+				((Expr.Unary)expr).operator.type == TokenType.BANG) {
+			compileCondition(((Expr.Unary)expr).right);
+			code.op(ICONST_1);
+			code.op(IXOR);
+			return;
+		}
+
+		if (expr instanceof Expr.Literal) {
+			Object value = ((Expr.Literal)expr).value;
+			code.op(Interpreter.isTruthy(value) ? ICONST_1 : ICONST_0);
+			return;
+		}
+
+		compile(expr);
+		code.invoke(INVOKESTATIC, INTERPRETER, "isTruthy",
+				"(" + OBJECT_TYPE + ")Z");
+	}
+
+	/*
+	Compiles equality, and comparisons the Interpreter would do on doubles,
+	to a 0 or 1 on the stack. Returns false, emitting nothing, for any
+	other expression.
+	 */
+	private boolean compileTest(Expr.Binary expr) {
+		int fail;
+		switch (expr.operator.type) {
+			case EQUAL_EQUAL:
+			case BANG_EQUAL:
+				compile(expr.left);
+				compile(expr.right);
+				code.invoke(INVOKESTATIC, INTERPRETER, "isEqual",
+						"(" + OBJECT_TYPE + OBJECT_TYPE + ")Z");
+				if (expr.operator.type == TokenType.BANG_EQUAL) {
+					code.op(ICONST_1);
+					code.op(IXOR);
+				}
+				return true;
+			// NaN compares false both ways, which picks dcmpl or dcmpg.
+			case GREATER: fail = IFLE; break;
+			case GREATER_EQUAL: fail = IFLT; break;
+			case LESS: fail = IFGE; break;
+			case LESS_EQUAL: fail = IFGT; break;
+			default: return false;
+		}
+
+		if (!Interpreter.isNumeric(expr.left) &&
+				!Interpreter.isNumeric(expr.right)) {
+			return false;
+		}
+
+		JvmAssembler.Label isFalse = new JvmAssembler.Label();
+		JvmAssembler.Label end = new JvmAssembler.Label();
+		compileOperands(expr);
+		code.op(fail == IFLE || fail == IFLT ? DCMPL : DCMPG);
+		code.jump(fail, isFalse);
+		code.op(ICONST_1);
+		code.jump(GOTO, end);
+		code.place(isFalse);
+		code.op(ICONST_0);
+		code.place(end);
+		return true;
+	}
+
+	private void compileOrNil(Expr expr) {
+		if (expr == null) {
+			code.op(ACONST_NULL);
+		} else {
+			compile(expr);
+		}
+	}
+
+	private void loadVariable(Token name, int depth, int slot) {
+		if (depth == -1) {
+			loadGlobals();
+			constant(name, "lox/lox/Token");
+			code.invoke(INVOKEVIRTUAL, ENVIRONMENT, "get",
+					"(" + TOKEN_TYPE + ")" + OBJECT_TYPE);
+			return;
+		}
+
+		if (depth < scopes.size()) {
+			Scope scope = scopes.get(scopes.size() - 1 - depth);
+			if (scope.environment == -1) {
+				code.aload(scope.locals.get(slot));
+				return;
+			}
+			code.aload(scope.environment);
+			code.iconst(0);
+		} else {
+			code.aload(CLOSURE_LOCAL);
+			code.iconst(depth - scopes.size());
+		}
+		code.iconst(slot);
+		code.invoke(INVOKEVIRTUAL, ENVIRONMENT, "getAt",
+				"(II)" + OBJECT_TYPE);
+	}
+
+	/*
+	A function's outermost scope holds its parameters and its body, just as
+	the Resolver sees it. The arguments are copied out of the list into the
+	scope's Environment or JVM locals.
+	 */
+	private void beginScope(List<Stmt> statements, int arity) {
+		int firstLocal = nextLocal;
+		int environment = -1;
+		boolean function = scopes.isEmpty() && !script;
+		if (declaresFunctions(statements)) {
+			environment = nextLocal++;
+			code.type(NEW, ENVIRONMENT);
+			code.op(DUP);
+			if (function) {
+				// The arguments are the first slots of the function's scope.
+				code.aload(CLOSURE_LOCAL);
+				code.aload(ARGUMENTS_LOCAL);
+				code.invoke(INVOKESPECIAL, ENVIRONMENT, "<init>",
+						"(" + ENVIRONMENT_TYPE + "[" + OBJECT_TYPE + ")V");
+			} else {
+				loadEnvironment();
+				code.invoke(INVOKESPECIAL, ENVIRONMENT, "<init>",
+						"(" + ENVIRONMENT_TYPE + ")V");
+			}
+			code.astore(environment);
+		}
+
+		Scope scope = new Scope(environment, firstLocal);
+		if (environment == -1) {
+			for (int i = 0; i < arity; i++) {
+				code.aload(ARGUMENTS_LOCAL);
+				code.iconst(i);
+				code.op(AALOAD);
+				int local = nextLocal++;
+				code.astore(local);
+				scope.locals.add(local);
+			}
+		}
+		scopes.add(scope);
+	}
+
+	private void endScope() {
+		Scope scope = scopes.remove(scopes.size() - 1);
+		nextLocal = scope.firstLocal;
+	}
+
+	private static boolean declaresFunctions(List<Stmt> statements) {
+		for (Stmt statement : statements) {
+			if (declaresFunctions(statement)) return true;
+		}
+		return false;
+	}
+
+	private static boolean declaresFunctions(Stmt statement) {
+		if (statement instanceof Stmt.Function) return true;
+		if (statement instanceof Stmt.Class) return true;
+		if (statement instanceof Stmt.Block) {
+			return declaresFunctions(((Stmt.Block)statement).statements);
+		}
+		if (statement instanceof Stmt.If) {
+			Stmt.If ifStmt = (Stmt.If)statement;
+			return declaresFunctions(ifStmt.thenBranch) ||
+					(ifStmt.elseBranch != null &&
+							declaresFunctions(ifStmt.elseBranch));
+		}
+		if (statement instanceof Stmt.While) {
+			return declaresFunctions(((Stmt.While)statement).body);
+		}
+		return false;
+	}
+
+	// The environment declarations in the current scope go into.
+	private void loadEnvironment() {
+		if (scopes.isEmpty()) {
+			loadGlobals();
+			return;
+		}
+
+		Scope scope = scopes.get(scopes.size() - 1);
+		if (scope.environment == -1) {
+			throw new IllegalStateException("Scope has no environment.");
+		}
+		code.aload(scope.environment);
+	}
+
+	private void loadGlobals() {
+		code.aload(INTERPRETER_LOCAL);
+		code.field(GETFIELD, INTERPRETER, "globals", ENVIRONMENT_TYPE);
+	}
+
+	private void constant(Object value, String type) {
+		int index = addConstant(value);
+		code.field(GETSTATIC, className, "constants", "[" + OBJECT_TYPE);
+		code.iconst(index);
+		code.op(AALOAD);
+		if (!type.equals(OBJECT)) code.type(CHECKCAST, type);
+	}
+
+	private int addConstant(Object value) {
+		Integer index = constantIndex.get(value);
+		if (index == null) {
+			index = constants.size();
+			constants.add(value);
+			constantIndex.put(value, index);
+		}
+		return index;
+	}
+
+	// Returns the name of the static field holding the site's invoker.
+	private String callSite(LoxCallSite site) {
+		callSites.add(addConstant(site));
+		return "site" + (callSites.size() - 1);
+	}
+
+	private void box(String type, String primitive) {
+		code.invoke(INVOKESTATIC, type, "valueOf",
+				"(" + primitive + ")L" + type + ";");
+	}
+}
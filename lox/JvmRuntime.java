@@ -0,0 +1,67 @@
+package lox.lox;
+
+/*
+Static entry points for the bytecode JvmCompiler emits. The compiled code
+does control flow, local variables and double arithmetic itself and calls
+these for anything that needs Lox's runtime rules. Each takes its operands
+in the order the bytecode evaluates them, and reports errors exactly the
+way the Interpreter does, usually by handing the values to it.
+ */
+class JvmRuntime {
+	private JvmRuntime() {
+	}
+
+	static double number(Object operand, Token operator) {
+		Interpreter.checkNumberOperand(operator, operand);
+		return (double)operand;
+	}
+
+	/*
+	Operands of arithmetic that the compiler couldn't prove numeric. If one
+	isn't a number, the generic operator sees both values and throws the
+	same error the tree-walker would.
+	 */
+	static double leftNumber(Object left, double right, Token operator) {
+		return leftNumber(left, (Object)right, operator);
+	}
+
+	static double leftNumber(Object left, Object right, Token operator) {
+		if (left instanceof Double) return (double)left;
+
+		Interpreter.executeGeneric(operator, left, right);
+		// Unreachable
+		return 0;
+	}
+
+	static double rightNumber(double left, Object right, Token operator) {
+		if (right instanceof Double) return (double)right;
+
+		Interpreter.executeGeneric(operator, left, right);
+		// Unreachable
+		return 0;
+	}
+
+	static Object binary(Object left, Object right, Token operator) {
+		return Interpreter.executeGeneric(operator, left, right);
+	}
+
+	static Object tailCall(Object callee, Object[] arguments, Token paren) {
+		return new TailCall(LoxCallSite.check(paren, callee, arguments),
+				arguments);
+	}
+
+	static Object assign(Object value, Environment environment,
+	                     int distance, int slot) {
+		environment.assignAt(distance, slot, value);
+		return value;
+	}
+
+	static Object assignGlobal(Object value, Environment globals, Token name) {
+		globals.assign(name, value);
+		return value;
+	}
+
+	static void print(Object value, Interpreter interpreter) {
+		interpreter.output.println(Interpreter.stringify(value));
+	}
+}
@@ -0,0 +1,254 @@
+package lox.lox;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+Serves the Language Server Protocol over a pair of streams, which is how
+editors start and talk to a local server: JSON-RPC messages, each after a
+Content-Length header. It keeps a Document for every open file, applies
+the edits the editor sends to it, and answers each change with the file's
+diagnostics. That is all it does; it doesn't complete, navigate or format.
+
+Changes are taken incrementally, so most keystrokes cost the parsing and
+resolving of the declaration they are in, and publishing costs what the
+file's diagnostics do, not what its size does. The protocol's character
+offsets count UTF-16 code units, the same as Java's chars, so they need no
+converting. Tokens only know their line, so a diagnostic covers the whole
+line it is on.
+ */
+final class LanguageServer {
+	// JSON-RPC's error codes.
+	private static final int METHOD_NOT_FOUND = -32601;
+	private static final int INVALID_REQUEST = -32600;
+
+	private final InputStream in;
+	private final OutputStream out;
+	private final Map<String, Document> documents = new HashMap<>();
+	private boolean shutdown = false;
+
+	LanguageServer(InputStream in, OutputStream out) {
+		this.in = new BufferedInputStream(in);
+		this.out = out;
+	}
+
+	/*
+	Handles messages until the editor sends exit or closes the stream.
+	Returns the exit code the protocol asks for: 0 if shutdown came first.
+	 */
+	int serve() throws IOException {
+		for (;;) {
+			String message = read();
+			if (message == null) return 1;
+
+			Map<?, ?> request;
+			try {
+				request = (Map<?, ?>)Json.parse(message);
+			} catch (IllegalArgumentException | ClassCastException error) {
+				continue;
+			}
+
+			String method = (String)request.get("method");
+			Object id = request.get("id");
+			// A response to a request of ours; the server never sends any.
+			if (method == null) continue;
+			if ("exit".equals(method)) return shutdown ? 0 : 1;
+
+			try {
+				Object result = handle(method, (Map<?, ?>)request.get("params"));
+				if (id != null) respond(id, result);
+			} catch (UnsupportedOperationException error) {
+				if (id != null) respondError(id, METHOD_NOT_FOUND, error.getMessage());
+			} catch (RuntimeException error) {
+				if (id != null) respondError(id, INVALID_REQUEST, String.valueOf(error));
+			}
+		}
+	}
+
+	private Object handle(String method, Map<?, ?> params) throws IOException {
+		switch (method) {
+			case "initialize": {
+				Map<String, Object> sync = new LinkedHashMap<>();
+				sync.put("openClose", true);
+				// Incremental.
+				sync.put("change", 2.0);
+				Map<String, Object> capabilities = new LinkedHashMap<>();
+				capabilities.put("textDocumentSync", sync);
+				Map<String, Object> info = new LinkedHashMap<>();
+				info.put("name", "jlox");
+				Map<String, Object> result = new LinkedHashMap<>();
+				result.put("capabilities", capabilities);
+				result.put("serverInfo", info);
+				return result;
+			}
+
+			case "shutdown":
+				shutdown = true;
+				return null;
+
+			case "textDocument/didOpen": {
+				Map<?, ?> document = (Map<?, ?>)params.get("textDocument");
+				String uri = (String)document.get("uri");
+				documents.put(uri, new Document((String)document.get("text")));
+				publish(uri);
+				return null;
+			}
+
+			case "textDocument/didChange": {
+				String uri = uri(params);
+				Document document = documents.get(uri);
+				if (document == null) return null;
+				for (Object change : (List<?>)params.get("contentChanges")) {
+					document = apply(document, (Map<?, ?>)change);
+				}
+				documents.put(uri, document);
+				publish(uri);
+				return null;
+			}
+
+			case "textDocument/didClose": {
+				String uri = uri(params);
+				documents.remove(uri);
+				// Clears what the editor was showing for the file.
+				notify("textDocument/publishDiagnostics",
+						diagnostics(uri, new ArrayList<>()));
+				return null;
+			}
+
+			default:
+				// Notifications nobody handles are dropped, as the protocol says.
+				if (method.startsWith("$/") || "initialized".equals(method)) {
+					return null;
+				}
+				throw new UnsupportedOperationException("Unknown method '" + method + "'.");
+		}
+	}
+
+	// A change without a range replaces the whole text.
+	private static Document apply(Document document, Map<?, ?> change) {
+		String text = (String)change.get("text");
+		Map<?, ?> range = (Map<?, ?>)change.get("range");
+		if (range == null) return new Document(text);
+
+		int start = offset(document, (Map<?, ?>)range.get("start"));
+		int end = offset(document, (Map<?, ?>)range.get("end"));
+		document.edit(start, end - start, text);
+		return document;
+	}
+
+	private static int offset(Document document, Map<?, ?> position) {
+		return document.offset(((Double)position.get("line")).intValue(),
+				((Double)position.get("character")).intValue());
+	}
+
+	private static String uri(Map<?, ?> params) {
+		return (String)((Map<?, ?>)params.get("textDocument")).get("uri");
+	}
+
+	private void publish(String uri) throws IOException {
+		List<Object> diagnostics = new ArrayList<>();
+		for (ErrorReporter.Diagnostic diagnostic : documents.get(uri).diagnostics()) {
+			double line = diagnostic.line - 1;
+			Map<String, Object> start = new LinkedHashMap<>();
+			start.put("line", line);
+			start.put("character", 0.0);
+			Map<String, Object> end = new LinkedHashMap<>();
+			end.put("line", line + 1);
+			end.put("character", 0.0);
+			Map<String, Object> range = new LinkedHashMap<>();
+			range.put("start", start);
+			range.put("end", end);
+
+			Map<String, Object> item = new LinkedHashMap<>();
+			item.put("range", range);
+			// Error.
+			item.put("severity", 1.0);
+			item.put("source", "lox");
+			item.put("message", diagnostic.message);
+			diagnostics.add(item);
+		}
+		notify("textDocument/publishDiagnostics", diagnostics(uri, diagnostics));
+	}
+
+	private static Map<String, Object> diagnostics(String uri, List<Object> diagnostics) {
+		Map<String, Object> params = new LinkedHashMap<>();
+		params.put("uri", uri);
+		params.put("diagnostics", diagnostics);
+		return params;
+	}
+
+	private void respond(Object id, Object result) throws IOException {
+		Map<String, Object> response = new LinkedHashMap<>();
+		response.put("jsonrpc", "2.0");
+		response.put("id", id);
+		response.put("result", result);
+		write(response);
+	}
+
+	private void respondError(Object id, int code, String message) throws IOException {
+		Map<String, Object> error = new LinkedHashMap<>();
+		error.put("code", (double)code);
+		error.put("message", message);
+		Map<String, Object> response = new LinkedHashMap<>();
+		response.put("jsonrpc", "2.0");
+		response.put("id", id);
+		response.put("error", error);
+		write(response);
+	}
+
+	private void notify(String method, Object params) throws IOException {
+		Map<String, Object> notification = new LinkedHashMap<>();
+		notification.put("jsonrpc", "2.0");
+		notification.put("method", method);
+		notification.put("params", params);
+		write(notification);
+	}
+
+	private void write(Map<String, Object> message) throws IOException {
+		byte[] body = Json.write(message).getBytes(StandardCharsets.UTF_8);
+		out.write(("Content-Length: " + body.length + "\r\n\r\n")
+				.getBytes(StandardCharsets.US_ASCII));
+		out.write(body);
+		out.flush();
+	}
+
+	// The next message's body, or null at the end of the stream.
+	private String read() throws IOException {
+		int length = -1;
+		for (;;) {
+			String header = readHeaderLine();
+			if (header == null) return null;
+			if (header.isEmpty()) break;
+			int colon = header.indexOf(':');
+			if (colon > 0 && header.substring(0, colon).trim()
+					.equalsIgnoreCase("Content-Length")) {
+				length = Integer.parseInt(header.substring(colon + 1).trim());
+			}
+		}
+		if (length < 0) throw new IOException("Message without a Content-Length.");
+
+		byte[] body = in.readNBytes(length);
+		if (body.length < length) return null;
+		return new String(body, StandardCharsets.UTF_8);
+	}
+
+	private String readHeaderLine() throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		for (;;) {
+			int c = in.read();
+			if (c == -1) return null;
+			if (c == '\n') break;
+			if (c != '\r') line.write(c);
+		}
+		return line.toString(StandardCharsets.US_ASCII);
+	}
+}
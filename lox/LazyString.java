@@ -0,0 +1,69 @@
+package lox.lox;
+
+/*
+The result of a string `+` that was too long to be worth copying. Lox
+strings are immutable, but `s = s + piece;` in a loop would copy all of `s`
+on every iteration if each result were a new String. Instead, a LazyString
+is a prefix of a StringBuilder that may be shared with longer strings made
+from it: appending to the LazyString that ends where its builder ends just
+appends to the builder, so building a string piece by piece is linear.
+
+The value is only turned into a real String (once, then cached) when
+something needs the characters: printing it, comparing it, or appending it
+to a different string. Everywhere else a string can be a String or a
+LazyString; isString() covers both.
+ */
+final class LazyString {
+	// Shorter results are cheaper to just copy.
+	private static final int MINIMUM_LENGTH = 64;
+
+	private final StringBuilder builder;
+	private final int length;
+	private String flattened;
+
+	private LazyString(StringBuilder builder, int length) {
+		this.builder = builder;
+		this.length = length;
+	}
+
+	static boolean isString(Object value) {
+		return value instanceof String || value instanceof LazyString;
+	}
+
+	// Both operands must be strings.
+	static Object concat(Object left, Object right) {
+		if (left instanceof LazyString) {
+			LazyString lazy = (LazyString)left;
+			// Nothing has been appended after this one, so it can be extended.
+			if (lazy.builder.length() == lazy.length) {
+				lazy.appendTo(right);
+				return new LazyString(lazy.builder, lazy.builder.length());
+			}
+		}
+
+		String leftText = left.toString();
+		String rightText = right.toString();
+		int length = leftText.length() + rightText.length();
+		if (length < MINIMUM_LENGTH) return leftText.concat(rightText);
+
+		// Leave room for the appends that usually follow.
+		StringBuilder builder = new StringBuilder(length * 2);
+		builder.append(leftText).append(rightText);
+		return new LazyString(builder, length);
+	}
+
+	private void appendTo(Object value) {
+		if (value instanceof LazyString) {
+			LazyString other = (LazyString)value;
+			builder.append(other.builder, 0, other.length);
+		} else {
+			builder.append((String)value);
+		}
+	}
+
+	@Override
+	public String toString() {
+		if (flattened == null) flattened = builder.substring(0, length);
+		return flattened;
+	}
+}
@@ -3,37 +3,217 @@ package lox.lox;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.nio.charset.Charset;
-import java.nio.file.Files;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.List;
 
+import lox.vm.VM;
+import lox.vm.VmRuntimeError;
 
 public class Lox {
-    private static final Interpreter interpreter = new Interpreter();
+    private static Interpreter interpreter;
+    private static VM vm;
+    // Where the program's output goes, flushed before errors and on exit
+    private static OutputSink output;
+    // Run scripts on the bytecode VM instead of the tree-walking Interpreter
+    private static boolean useVm = false;
+    // Keep the program as a CompactAst instead of a tree of Stmt objects
+    private static boolean compact = false;
+    // Print the tree the Optimizer produced instead of running it
+    private static boolean dumpAst = false;
+    /*
+    Load and save the front end's result in a ScriptCache next to the script,
+    and the prelude's globals in a Snapshot. Off unless asked for, since it
+    writes files next to the scripts it runs.
+     */
+    private static boolean useCache = false;
+    // Run before the script or REPL, into the same globals
+    private static String prelude = null;
+    // Samples the Lox call stack and writes it to profilePath at exit
+    private static Profiler profiler;
+    private static String profilePath = null;
 
-    // Indicates whether an error has occurred during the execution of the program
-    static boolean hadError = false;
-    static boolean hadRuntimeError = false;
+    /*
+    Indicates whether an error has occurred during the execution of the program.
+    Everything the command line runs reports here, and the messages go straight
+    to System.err.
+     */
+    static final ErrorReporter errors = new ErrorReporter(System.err);
 
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("Usage: jlox [script]");
-            System.exit(64);
-        } else if (args.length == 1) {
-            runFile(args[0]);
-        } else {
-            runPrompt();
+        List<String> paths = new ArrayList<>();
+        boolean specialize = false;
+        boolean compile = false;
+        int outputBuffer = OutputSink.DEFAULT_CAPACITY;
+        boolean lineBuffered = false;
+        boolean languageServer = false;
+        for (String arg : args) {
+            if (arg.equals("--engine=vm")) {
+                useVm = true;
+                compile = false;
+            } else if (arg.equals("--engine=tree")) {
+                useVm = false;
+                compile = false;
+            } else if (arg.equals("--engine=jvm")) {
+                useVm = false;
+                compile = true;
+            } else if (arg.equals("--specialize")) {
+                specialize = true;
+            } else if (arg.equals("--compact")) {
+                compact = true;
+            } else if (arg.equals("--dump-ast")) {
+                dumpAst = true;
+            } else if (arg.equals("--cache")) {
+                useCache = true;
+            } else if (arg.startsWith("--prelude=")) {
+                prelude = arg.substring("--prelude=".length());
+            } else if (arg.startsWith("--profile=")) {
+                profilePath = arg.substring("--profile=".length());
+            } else if (arg.equals("--language-server")) {
+                languageServer = true;
+            } else if (arg.equals("--line-buffered")) {
+                lineBuffered = true;
+            } else if (arg.startsWith("--output-buffer=")) {
+                outputBuffer = parseSize(arg.substring("--output-buffer=".length()));
+            } else if (arg.startsWith("--")) {
+                usage();
+            } else {
+                paths.add(arg);
+            }
         }
+
+        if (paths.size() > 1) usage();
+        // The VM has globals of its own.
+        if (prelude != null && useVm) usage();
+
+        // An editor starts the server and talks to it over stdin and stdout.
+        if (languageServer) {
+            if (!paths.isEmpty()) usage();
+            System.exit(new LanguageServer(System.in, System.out).serve());
+        }
+
+        // The REPL shows each result as soon as it is printed.
+        output = OutputSink.standardOutput(outputBuffer,
+                lineBuffered || paths.isEmpty());
+        if (profilePath != null) profiler = new Profiler();
+        interpreter = new Interpreter(specialize, compile, output, errors,
+                profiler);
+        vm = new VM(output);
+
+        try {
+            if (prelude != null) runPrelude(prelude);
+            if (paths.size() == 1) {
+                runFile(paths.get(0));
+            } else {
+                runPrompt();
+            }
+        } finally {
+            finish();
+        }
+    }
+
+    private static int parseSize(String text) {
+        try {
+            int size = Integer.parseInt(text);
+            if (size >= 64) return size;
+        } catch (NumberFormatException error) {
+            // Falls through to the usage message.
+        }
+        usage();
+        return 0;
+    }
+
+    private static void usage() {
+        System.out.println("Usage: jlox [--engine=tree|vm|jvm] [--specialize] [--compact] [--dump-ast]" +
+                " [--cache] [--prelude=script] [--profile=file] [--output-buffer=bytes] [--line-buffered]" +
+                " [--language-server] [script]");
+        System.exit(64);
     }
 
+    /*
+    The script is memory-mapped and scanned in place, and tokens are produced
+    only as the parser asks for them, so neither the file contents nor the
+    token list have to be held on the heap.
+
+    With --cache, when the script hasn't changed since it was last run, even
+    that is skipped: the resolved program comes straight from its ScriptCache.
+    The compact representation is built a declaration at a time and never has
+    the whole tree to cache, so it always starts from the source.
+     */
     private static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+        try (FileChannel channel = FileChannel.open(Paths.get(path),
+                StandardOpenOption.READ)) {
+            MappedByteBuffer source = channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (!useCache || (compact && !useVm)) {
+                run(new Scanner(new MappedSource(source)));
+            } else {
+                List<Stmt> statements = load(Paths.get(path), source);
+                if (statements != null) run(statements);
+            }
+        }
         
+        exitOnError();
+    }
+
+    /*
+    The prelude defines what the scripts after it use. Once it has run without
+    errors, the globals it left behind are saved in a Snapshot, and later runs
+    restore them instead of running it again, so startup no longer grows with
+    the prelude. It always runs on the Interpreter, whose globals the compact
+    representation shares.
+     */
+    private static void runPrelude(String path) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(path),
+                StandardOpenOption.READ)) {
+            MappedByteBuffer source = channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            Snapshot snapshot = new Snapshot(Paths.get(path), source);
+            if (useCache && snapshot.restore(interpreter)) return;
+
+            List<Stmt> statements = useCache
+                    ? load(Paths.get(path), source)
+                    : compile(new Scanner(new MappedSource(source)));
+            if (statements != null) interpreter.interpret(statements);
+            if (useCache && !errors.hadError && !errors.hadRuntimeError) {
+                snapshot.save(interpreter);
+            }
+        }
+
+        exitOnError();
+    }
+
+    // Returns the script's program from its ScriptCache, compiling it on a miss.
+    private static List<Stmt> load(Path path, MappedByteBuffer source) {
+        ScriptCache cache = new ScriptCache(path, source);
+        List<Stmt> statements = cache.load();
+        if (statements == null) {
+            statements = compile(new Scanner(new MappedSource(source)));
+            // Saved before running, which specializes the tree.
+            if (statements != null) cache.store(statements);
+        }
+        return statements;
+    }
+
+    private static void exitOnError() throws IOException {
+        // System.exit() doesn't run the finally block in main().
+        finish();
         // Indicate an error in the exit code
-        if (hadError) System.exit(65);
-        if (hadRuntimeError) System.exit(70);
+        if (errors.hadError) System.exit(65);
+        if (errors.hadRuntimeError) System.exit(70);
+    }
+
+    // Flushes the output and writes the profile, if there is one.
+    private static void finish() throws IOException {
+        output.flush();
+        if (profiler != null) {
+            profiler.stop(Paths.get(profilePath));
+            profiler = null;
+        }
     }
 
     private static void runPrompt() throws IOException {
@@ -44,41 +224,71 @@ public class Lox {
             System.out.println("> ");
             String line = reader.readLine();
             if (line == null) break;
-            run(line);
+            run(new Scanner(line));
 
             // Reset the error flag
-            hadError = false;
+            errors.hadError = false;
         }
     }
 
-    private static void run(String source) {
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
-
+    private static void run(Scanner scanner) {
         // we need replace the print code
 //        // Fow now, just print the tokens
 //        for (Token token : tokens) {
 //            System.out.println(token);
 //        }
-        Parser parser = new Parser(tokens);
+        if (compact && !useVm) {
+            runCompact(new Parser(scanner));
+            return;
+        }
+
+        List<Stmt> statements = compile(scanner);
+        if (statements != null) run(statements);
+    }
+
+    // Parses, resolves and optimizes a script, or returns null on an error.
+    private static List<Stmt> compile(Scanner scanner) {
+        Parser parser = new Parser(scanner);
         //Expr expression = parser.parse();
         List<Stmt> statements = parser.parse();
 
         // Stop if there was a syntax error
-        if (hadError) return;
+        if (errors.hadError) return null;
 
         /*
         We don't run the resolver if there are any parse errors. If the code has a syntax error,
         it's never going to run, so there's little value in resolving it. If the syntax is clean,
-        we tell the resolver to do its thing. The resolver has a reference to the interpreter and
-        pokes the resolution data directly into it as it walks over variables. When the interpreter
-        runs next, it has everything it needs.
+        we tell the resolver to do its thing. The resolver pokes the resolution data directly into
+        the variable nodes as it walks over them. When the interpreter runs next, it has everything
+        it needs.
          */
-        Resolver resolver = new Resolver(interpreter);
+        Resolver resolver = new Resolver();
         resolver.resolve(statements);
 
         // Stop if there was a resolution error.
-        if (hadError) return;
+        if (errors.hadError) return null;
+
+        return new Optimizer().optimize(statements);
+    }
+
+    private static void run(List<Stmt> statements) {
+        if (dumpAst) {
+            AstPrinter printer = new AstPrinter();
+            for (Stmt statement : statements) {
+                System.out.println(printer.print(statement));
+            }
+            return;
+        }
+
+        if (useVm) {
+            try {
+                vm.interpret(new Compiler().compile(statements));
+            } catch (VmRuntimeError error) {
+                output.flush();
+                errors.runtimeError(error.getMessage(), error.line);
+            }
+            return;
+        }
 
         // we don't need to print the AST tree, so
 //        System.out.println(new AstPrinter().print(expression));
@@ -86,26 +296,38 @@ public class Lox {
         interpreter.interpret(statements);
     }
 
-    static void error(int line, String message) {
-        report(line, "", message);
-    }
+    /*
+    Each top-level declaration is resolved and encoded as soon as it has been
+    parsed, so only one declaration's tree is alive at a time. Resolving them
+    one by one is the same as resolving the whole list: the resolver's scopes
+    are empty again at the end of every top-level declaration.
+     */
+    private static void runCompact(Parser parser) {
+        Resolver resolver = new Resolver();
+        Optimizer optimizer = new Optimizer();
+        AstPrinter printer = new AstPrinter();
+        CompactAst program = new CompactAst();
+        boolean syntaxError = false;
+        while (parser.hasNextDeclaration()) {
+            boolean hadErrorBefore = errors.hadError;
+            Stmt statement = parser.nextDeclaration();
+            if (statement == null || (errors.hadError && !hadErrorBefore)) {
+                syntaxError = true;
+            }
 
-    private static void report(int line, String where, String message) {
-        System.err.println("[line " + line + "] Error" + where + ": " + message);
-        hadError = true;
-    }
+            // Keep parsing to report every syntax error, but stop resolving.
+            if (syntaxError) continue;
+
+            resolver.resolve(statement);
+            statement = optimizer.optimize(statement);
+            if (statement == null) continue;
 
-    static void error(Token token, String message) {
-        if (token.type == TokenType.EOF) {
-            report(token.line, " at end", message);
-        } else {
-            report(token.line, " at '" + token.lexeme + "'", message);
+            if (dumpAst) System.out.println(printer.print(statement));
+            program.add(statement);
         }
-    }
 
-    static void runtimeError(RuntimeError error) {
-        System.err.println(error.getMessage() +
-                "\n[line " + error.token.line + "]");
-        hadRuntimeError = true;
+        if (errors.hadError || dumpAst) return;
+
+        new CompactInterpreter(interpreter, program).interpret();
     }
 }
@@ -0,0 +1,182 @@
+package lox.lox;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+
+/*
+An inline cache for one call expression, built out of method handles. The
+site starts out pointing at link(), which does the checks visitCallExpr
+used to do on every call: that the callee is callable and takes as many
+arguments as the call passes. Once they pass, it puts a guarded direct call
+to that callee in front of the current target, so the next call with the
+same callee goes straight to it without repeating the checks.
+
+A LoxFunction is guarded on its key rather than on the object itself. Every
+closure of a declaration, and every method bound from it, has the same
+arity and runs the same code, so `obj.method()` stays one cached case even
+though each bind() makes a new LoxFunction. For a function from the tree
+the key is its Stmt.Function; a CompactFunction, whose declaration is a
+node index, gets an object the CompactInterpreter keeps for that node.
+Classes and native functions are guarded on identity.
+
+Because the target of a MutableCallSite is something HotSpot treats as a
+constant, the compiled code from JvmCompiler can call through a site and
+have a monomorphic call inlined. After LIMIT different callees the site
+gives up caching and does the full checks on each call, like a megamorphic
+virtual call.
+
+When the interpreter is profiling, every call the site makes goes through
+profiledCall(), which keeps the Profiler's shadow stack. That is decided
+when a callee is linked, so the sites pay nothing for it otherwise.
+
+The type of every site is (callee, arguments, interpreter) -> result, in
+the order the compiled code pushes them.
+ */
+class LoxCallSite extends MutableCallSite {
+	static final MethodType TYPE = MethodType.methodType(Object.class,
+			Object.class, Object[].class, Interpreter.class);
+
+	private static final int LIMIT = 4;
+
+	private static final MethodHandle LINK;
+	private static final MethodHandle INVOKE;
+	private static final MethodHandle IS_FUNCTION;
+	private static final MethodHandle IS_CALLEE;
+	private static final MethodHandle CALL;
+	private static final MethodHandle PROFILED_CALL;
+
+	static {
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
+		try {
+			LINK = lookup.findVirtual(LoxCallSite.class, "link", TYPE);
+			INVOKE = lookup.findStatic(LoxCallSite.class, "invoke",
+					TYPE.insertParameterTypes(0, Token.class));
+			IS_FUNCTION = lookup.findStatic(LoxCallSite.class, "isFunction",
+					MethodType.methodType(boolean.class, Object.class,
+							Object.class));
+			IS_CALLEE = lookup.findStatic(LoxCallSite.class, "isCallee",
+					MethodType.methodType(boolean.class, Object.class,
+							Object.class));
+			CALL = lookup.findVirtual(LoxCallable.class, "call",
+					MethodType.methodType(Object.class, Interpreter.class,
+							Object[].class));
+			PROFILED_CALL = lookup.findStatic(LoxCallSite.class,
+					"profiledCall", TYPE.insertParameterTypes(0, Token.class));
+		} catch (ReflectiveOperationException error) {
+			throw new ExceptionInInitializerError(error);
+		}
+	}
+
+	private final Token paren;
+	private int cached = 0;
+
+	LoxCallSite(Token paren) {
+		super(TYPE);
+		this.paren = paren;
+		setTarget(LINK.bindTo(this));
+	}
+
+	Object call(Object callee, Object[] arguments,
+	            Interpreter interpreter) {
+		try {
+			return (Object)getTarget().invokeExact(callee, arguments,
+					interpreter);
+		} catch (RuntimeException | Error error) {
+			throw error;
+		} catch (Throwable error) {
+			// Lox code never throws a checked exception.
+			throw new IllegalStateException(error);
+		}
+	}
+
+	private Object link(Object callee, Object[] arguments,
+	                    Interpreter interpreter) {
+		LoxCallable function = check(paren, callee, arguments);
+
+		if (cached < LIMIT) {
+			cached++;
+			MethodHandle test;
+			if (callee instanceof LoxFunction) {
+				test = MethodHandles.insertArguments(IS_FUNCTION, 0,
+						((LoxFunction)callee).key);
+			} else {
+				test = IS_CALLEE.bindTo(callee);
+			}
+			test = MethodHandles.dropArguments(test, 1, Object[].class,
+					Interpreter.class);
+
+			// Only the guard is specific to the callee; the call itself is
+			// an interface call that HotSpot can devirtualize behind it.
+			MethodHandle target = MethodHandles.permuteArguments(
+					CALL.asType(MethodType.methodType(Object.class,
+							Object.class, Interpreter.class, Object[].class)),
+					TYPE, 0, 2, 1);
+			if (interpreter.profiler != null) {
+				target = MethodHandles.insertArguments(PROFILED_CALL, 0, paren);
+			}
+			setTarget(MethodHandles.guardWithTest(test, target, getTarget()));
+		} else if (cached == LIMIT) {
+			cached++;
+			setTarget(MethodHandles.insertArguments(INVOKE, 0, paren));
+		}
+
+		return call(paren, function, arguments, interpreter);
+	}
+
+	// The uncached path.
+	private static Object invoke(Token paren, Object callee,
+	                             Object[] arguments,
+	                             Interpreter interpreter) {
+		return call(paren, check(paren, callee, arguments), arguments,
+				interpreter);
+	}
+
+	private static Object call(Token paren, LoxCallable function,
+	                           Object[] arguments, Interpreter interpreter) {
+		if (interpreter.profiler == null) {
+			return function.call(interpreter, arguments);
+		}
+		return profiledCall(paren, function, arguments, interpreter);
+	}
+
+	// Runs the call as a frame on the profiler's shadow stack.
+	private static Object profiledCall(Token paren, Object callee,
+	                                   Object[] arguments,
+	                                   Interpreter interpreter) {
+		Profiler profiler = interpreter.profiler;
+		profiler.enter(callee, paren.line);
+		try {
+			return ((LoxCallable)callee).call(interpreter, arguments);
+		} finally {
+			profiler.exit();
+		}
+	}
+
+	static LoxCallable check(Token paren, Object callee,
+	                         Object[] arguments) {
+		if (!(callee instanceof LoxCallable)) {
+			throw new RuntimeError(paren,
+					"Can only call functions and classes.");
+		}
+
+		LoxCallable function = (LoxCallable)callee;
+		if (arguments.length != function.arity()) {
+			throw new RuntimeError(paren, "Expected " +
+					function.arity() + " arguments but got " +
+					arguments.length + ".");
+		}
+
+		return function;
+	}
+
+	private static boolean isFunction(Object key, Object callee) {
+		return callee instanceof LoxFunction &&
+				((LoxFunction)callee).key == key;
+	}
+
+	private static boolean isCallee(Object expected, Object callee) {
+		return callee == expected;
+	}
+}
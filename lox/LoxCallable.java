@@ -1,8 +1,20 @@
 package lox.lox;
 
+import java.util.Arrays;
 import java.util.List;
 
 interface LoxCallable {
 	int arity();
 	Object call(Interpreter interpreter, List<Object> arguments);
+
+	/*
+	The interpreters call everything this way. The array has exactly arity()
+	elements, and it belongs to the callee, which may keep it as the slots of
+	its environment. Natives only have to implement the List form, so only
+	natives get here.
+	 */
+	default Object call(Interpreter interpreter, Object[] arguments) {
+		if (LoxMetrics.ENABLED) LoxMetrics.NATIVE_CALLS.increment();
+		return call(interpreter, Arrays.asList(arguments));
+	}
 }
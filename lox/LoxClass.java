@@ -1,5 +1,6 @@
 package lox.lox;
 
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -7,7 +8,18 @@ import java.util.Map;
 class LoxClass implements LoxCallable {
 	final String name;
 	final LoxClass superclass;
-	private final Map<String, LoxFunction> methods;
+	/*
+	The method table is flattened when the class is created: it starts as a
+	copy of the superclass's (already flattened) table and the class's own
+	methods are put over it, so overriding is just map replacement. A lookup
+	is then a single map access no matter how deep the hierarchy is.
+	 */
+	final Map<String, LoxFunction> methods;
+	private final LoxFunction initializer;
+	// Every instance starts out with this shape and grows from there.
+	final Shape rootShape = new Shape();
+	// Largest number of fields an instance of this class has had so far.
+	int fieldCapacity = 0;
 
 	//LoxClass(String name) {
 	//	this.name = name;
@@ -17,20 +29,17 @@ class LoxClass implements LoxCallable {
 	         Map<String, LoxFunction> methods) {
 		this.superclass = superclass;
 		this.name = name;
-		this.methods = methods;
+
+		Map<String, LoxFunction> flattened = new HashMap<>();
+		if (superclass != null) flattened.putAll(superclass.methods);
+		flattened.putAll(methods);
+		this.methods = flattened;
+		this.initializer = flattened.get("init");
 	}
 
 	LoxFunction findMethod(String name) {
-		if (methods.containsKey(name)) {
-			return methods.get(name);
-		}
-
-		if (superclass != null) {
-			return superclass.findMethod(name);
-		}
-
-		// the name is not in HashMap
-		return null;
+		// null if the name is in neither this class nor any superclass
+		return methods.get(name);
 	}
 
 	@Override
@@ -41,12 +50,16 @@ class LoxClass implements LoxCallable {
 	@Override
 	public Object call(Interpreter interpreter,
 	                   List<Object> arguments) {
+		return call(interpreter, arguments.toArray());
+	}
+
+	@Override
+	public Object call(Interpreter interpreter, Object[] arguments) {
 		LoxInstance instance = new LoxInstance(this);
 		/*
 		When a class is called, after the LoxInstance is created, we look for an "init" method.
 		If we find one, we immediately bind and invoke it just like a normal method call.
 		 */
-		LoxFunction initializer = findMethod("init");
 		if (initializer != null) {
 			initializer.bind(instance).call(interpreter, arguments);
 		}
@@ -57,7 +70,6 @@ class LoxClass implements LoxCallable {
 	@Override
 	public int arity() {
 		//return 0;
-		LoxFunction initializer = findMethod("init");
 		if (initializer == null) return 0;
 		return initializer.arity();
 	}
@@ -0,0 +1,139 @@
+package lox.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.util.Collections;
+import java.util.List;
+
+import lox.vm.VM;
+import lox.vm.VmRuntimeError;
+
+/*
+Runs Lox scripts for a Java program that embeds the language. The command
+line keeps one interpreter and reports errors to System.err, which suits a
+single script but means only one can run in the JVM at a time. An engine
+instead gives every call to run() its own scanner, parser, resolver,
+interpreter and globals, an ErrorReporter that keeps the run's messages,
+and an OutputSink over the caller's stream. The run's Scanner has its own
+symbol table, dropped with it when the run ends. Runs share nothing but
+immutable values, so any number of threads can run scripts on one engine
+at once.
+
+A run happens entirely on the thread that calls run(), so the engine
+doesn't decide how scripts are scheduled. Submit runs to whatever
+ExecutorService fits, such as a fixed pool or, on a JDK that has them, an
+executor that starts a virtual thread per task.
+ */
+public final class LoxEngine {
+	// What runs the script once it has been parsed and resolved.
+	public enum Backend {
+		TREE,
+		SPECIALIZING,
+		JVM,
+		VM,
+	}
+
+	/*
+	Each run buffers its own output. There may be thousands of runs alive at
+	once, so this is much smaller than the command line's buffer.
+	 */
+	private static final int OUTPUT_CAPACITY = 4 * 1024;
+
+	private final Backend backend;
+
+	public LoxEngine() {
+		this(Backend.TREE);
+	}
+
+	public LoxEngine(Backend backend) {
+		this.backend = backend;
+	}
+
+	// Runs the script and returns what it printed along with its errors.
+	public Result run(String source) {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		ErrorReporter errors = execute(source, output);
+		return new Result(errors, output.toString());
+	}
+
+	/*
+	Runs the script, writing what it prints to `output`. The output is
+	flushed before the run returns, but the stream is left open.
+	 */
+	public Result run(String source, OutputStream output) {
+		return new Result(execute(source, output), null);
+	}
+
+	private ErrorReporter execute(String source, OutputStream stream) {
+		ErrorReporter errors = new ErrorReporter();
+		OutputSink output = new OutputSink(Channels.newChannel(stream),
+				OUTPUT_CAPACITY, false);
+		try {
+			Scanner scanner = new Scanner(source, errors);
+			List<Stmt> statements = new Parser(scanner, errors).parse();
+			if (errors.hadError) return errors;
+
+			new Resolver(errors).resolve(statements);
+			if (errors.hadError) return errors;
+
+			statements = new Optimizer().optimize(statements);
+			if (backend == Backend.VM) {
+				try {
+					new VM(output).interpret(new Compiler().compile(statements));
+				} catch (VmRuntimeError error) {
+					output.flush();
+					errors.runtimeError(error.getMessage(), error.line);
+				}
+			} else {
+				new Interpreter(backend == Backend.SPECIALIZING,
+						backend == Backend.JVM, output, errors)
+						.interpret(statements);
+			}
+			return errors;
+		} finally {
+			output.flush();
+		}
+	}
+
+	/*
+	How a run ended. The exit code is the one the command line would have
+	exited with: 0 on success, 65 for a syntax or resolution error and 70
+	for a runtime error.
+	 */
+	public static final class Result {
+		private final int exitCode;
+		private final List<String> errors;
+		private final String output;
+
+		private Result(ErrorReporter errors, String output) {
+			if (errors.hadError) {
+				this.exitCode = 65;
+			} else if (errors.hadRuntimeError) {
+				this.exitCode = 70;
+			} else {
+				this.exitCode = 0;
+			}
+			this.errors = Collections.unmodifiableList(errors.messages());
+			this.output = output;
+		}
+
+		public boolean succeeded() {
+			return exitCode == 0;
+		}
+
+		public int exitCode() {
+			return exitCode;
+		}
+
+		// Every error message, formatted as the command line prints them.
+		public List<String> errors() {
+			return errors;
+		}
+
+		// What the script printed, or null if it was written to a stream.
+		public String output() {
+			return output;
+		}
+	}
+}
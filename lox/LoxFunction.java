@@ -3,27 +3,43 @@ package lox.lox;
 import java.util.List;
 
 class LoxFunction implements LoxCallable {
-	private final Stmt.Function declaration;
-	private final Environment closure;
-	private final boolean isInitializer;
+	final Stmt.Function declaration;
+	final Environment closure;
+	final boolean isInitializer;
+	/*
+	The same object for every closure of one declaration, and for every
+	method bound from it. LoxCallSite guards on it.
+	 */
+	final Object key;
 
 	//LoxFunction(Stmt.Function declaration) {
 	//LoxFunction(Stmt.Function declaration, Environment closure) {
 	LoxFunction(Stmt.Function declaration, Environment closure,
 	            boolean isInitializer) {
+		this(declaration, closure, isInitializer, declaration);
+	}
+
+	LoxFunction(Stmt.Function declaration, Environment closure,
+	            boolean isInitializer, Object key) {
 		this.isInitializer = isInitializer;
 		this.closure = closure;
 		this.declaration = declaration;
+		this.key = key;
 	}
 
 	LoxFunction bind(LoxInstance instance) {
+		if (LoxMetrics.ENABLED) LoxMetrics.BINDS.increment();
 		Environment environment = new Environment(closure);
-		environment.define("this", instance);
+		environment.define(instance);
 		//return new LoxFunction(declaration, environment);
 		return new LoxFunction(declaration, environment,
 				isInitializer);
 	}
 
+	String name() {
+		return declaration.name.lexeme;
+	}
+
 	@Override
 	public String toString() {
 		return "<fn " + declaration.name.lexeme + ">";
@@ -42,31 +58,88 @@ class LoxFunction implements LoxCallable {
 		return declaration.params.size();
 	}
 
+	/*
+	A function that returns a TailCall wants its caller to make that call for
+	it, so this loops until it gets a real value. When the tail call is to a
+	function with the same closure, the environment of the call that just
+	finished is reused for it, unless a closure created in that call might
+	still be holding on to it.
+
+	The argument array becomes the slots of the body's environment, so the
+	parameters are already defined when the body starts.
+	 */
 	@Override
 	public Object call(Interpreter interpreter, List<Object> arguments) {
-		//Environment environment = new Environment(interpreter.globals);
-		/*
-		This creates an environment chain that goes from the function's body out
-		through the environments where the function is declared, all the way out
-		to the global scope. The runtime environment chain matches the textual
-		nesting of the source code like we want.
-		 */
-		Environment environment = new Environment(closure);
-		for (int i = 0; i < declaration.params.size(); i++) {
-			environment.define(declaration.params.get(i).lexeme,
-					arguments.get(i));
+		return call(interpreter, arguments.toArray());
+	}
+
+	@Override
+	public Object call(Interpreter interpreter, Object[] arguments) {
+		LoxFunction function = this;
+		Environment environment = null;
+
+		while (true) {
+			if (LoxMetrics.ENABLED) LoxMetrics.FUNCTION_CALLS.increment();
+			Object result;
+			if (function.compile(interpreter)) {
+				result = function.declaration.compiled.call(interpreter,
+						function.closure, arguments);
+				environment = null;
+			} else {
+				if (environment == null) {
+					//Environment environment = new Environment(interpreter.globals);
+					/*
+					This creates an environment chain that goes from the function's
+					body out through the environments where the function is
+					declared, all the way out to the global scope. The runtime
+					environment chain matches the textual nesting of the source code
+					like we want.
+					 */
+					environment = new Environment(function.closure, arguments);
+				} else {
+					environment.reset(arguments);
+				}
+				result = function.execute(interpreter, environment);
+				if (function.declaration.hasClosures) environment = null;
+			}
+
+			if (function.isInitializer) return function.closure.getAt(0, 0);
+			if (!(result instanceof TailCall)) return result;
+
+			TailCall tailCall = (TailCall)result;
+			arguments = tailCall.arguments;
+			// Anything else, like a class or a native, is called normally.
+			if (tailCall.callee.getClass() != LoxFunction.class) {
+				return tailCall.callee.call(interpreter, arguments);
+			}
+
+			LoxFunction next = (LoxFunction)tailCall.callee;
+			if (interpreter.profiler != null) interpreter.profiler.replace(next);
+			if (next.closure != function.closure) environment = null;
+			function = next;
 		}
+	}
 
-		//interpreter.executeBlock(declaration.body, environment);
-		try {
-			interpreter.executeBlock(declaration.body, environment);
-		} catch (Return returnValue) {
-			if (isInitializer) return closure.getAt(0, "this");
+	// Whether the declaration runs as JVM bytecode.
+	private boolean compile(Interpreter interpreter) {
+		if (!interpreter.compiling) return false;
 
-			return returnValue.value;
+		// Compiled the first time it's called, then shared by every closure.
+		if (declaration.compiled == null) {
+			declaration.compiled = JvmCompiler.compile(declaration);
+		}
+		return declaration.compiled != JvmCompiler.UNCOMPILABLE;
+	}
+
+	private Object execute(Interpreter interpreter, Environment environment) {
+		//interpreter.executeBlock(declaration.body, environment);
+		if (interpreter.executeBlock(declaration.body, environment) ==
+				Completion.RETURN) {
+			Object value = interpreter.returnValue;
+			interpreter.returnValue = null;
+			return value;
 		}
 
-		if (isInitializer) return closure.getAt(0, "this");
 		return null;
 	}
 }
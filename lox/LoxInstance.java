@@ -1,19 +1,26 @@
 package lox.lox;
 
-import java.util.HashMap;
-import java.util.Map;
-
 class LoxInstance {
-	private LoxClass klass;
-	private final Map<String, Object> fields = new HashMap<>();
+	final LoxClass klass;
+	/*
+	The field names live in the shared Shape; the instance only keeps the
+	values, at the slots its shape assigns. The Interpreter reads and writes
+	these directly when a property access hits its inline cache.
+	 */
+	Shape shape;
+	Object[] fields;
 
 	LoxInstance(LoxClass klass) {
+		if (LoxMetrics.ENABLED) LoxMetrics.INSTANCES.increment();
 		this.klass = klass;
+		this.shape = klass.rootShape;
+		this.fields = new Object[klass.fieldCapacity];
 	}
 
 	Object get(Token name) {
-		if (fields.containsKey(name.lexeme)) {
-			return fields.get(name.lexeme);
+		int slot = shape.slotOf(name.lexeme);
+		if (slot != -1) {
+			return fields[slot];
 		}
 
 		LoxFunction method = klass.findMethod(name.lexeme);
@@ -25,7 +32,31 @@ class LoxInstance {
 	}
 
 	void set(Token name, Object value) {
-		fields.put(name.lexeme, value);
+		set(name.lexeme, value);
+	}
+
+	void set(String name, Object value) {
+		int slot = shape.slotOf(name);
+		if (slot == -1) {
+			slot = shape.fieldCount;
+			transition(shape.withField(name));
+		}
+
+		fields[slot] = value;
+	}
+
+	void transition(Shape next) {
+		if (next.fieldCount > fields.length) {
+			Object[] grown = new Object[Math.max(next.fieldCount, fields.length * 2)];
+			System.arraycopy(fields, 0, grown, 0, fields.length);
+			fields = grown;
+		}
+		shape = next;
+
+		// Later instances start out big enough for the fields we've seen.
+		if (next.fieldCount > klass.fieldCapacity) {
+			klass.fieldCapacity = next.fieldCount;
+		}
 	}
 
 	@Override
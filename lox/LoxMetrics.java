@@ -0,0 +1,97 @@
+package lox.lox;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/*
+Counters of what the interpreters in this JVM are doing, exposed as an
+MBean so they can be watched live from JConsole or any JMX client. They
+are LongAdders, which spread increments from different threads over
+separate cells, so many interpreters running in parallel don't all contend
+on one counter.
+
+Counting is off unless the JVM is started with -Dlox.metrics=true.
+ENABLED is a static final, so when it's false HotSpot drops every
+`if (LoxMetrics.ENABLED)` from the compiled code and the counters cost
+nothing. When it's true, the MBean is registered as this class is loaded,
+which happens as the first interpreter makes its global environment.
+
+Statements are counted by the tree-walking and compact interpreters and by
+the code JvmCompiler generates. The bytecode VM has its own runtime and
+only shows up in the runtime error count.
+ */
+final class LoxMetrics implements LoxMetricsMBean {
+	static final boolean ENABLED = Boolean.getBoolean("lox.metrics");
+
+	static final LongAdder STATEMENTS = new LongAdder();
+	static final LongAdder FUNCTION_CALLS = new LongAdder();
+	static final LongAdder NATIVE_CALLS = new LongAdder();
+	static final LongAdder ENVIRONMENTS = new LongAdder();
+	static final LongAdder INSTANCES = new LongAdder();
+	static final LongAdder BINDS = new LongAdder();
+	static final LongAdder RUNTIME_ERRORS = new LongAdder();
+
+	static {
+		if (ENABLED) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().registerMBean(
+						new StandardMBean(new LoxMetrics(), LoxMetricsMBean.class),
+						new ObjectName("lox.lox:type=Interpreter"));
+			} catch (JMException error) {
+				// Already registered by another class loader; count anyway.
+			}
+		}
+	}
+
+	private LoxMetrics() {}
+
+	@Override
+	public long getStatementsExecuted() {
+		return STATEMENTS.sum();
+	}
+
+	@Override
+	public long getFunctionCalls() {
+		return FUNCTION_CALLS.sum();
+	}
+
+	@Override
+	public long getNativeCalls() {
+		return NATIVE_CALLS.sum();
+	}
+
+	@Override
+	public long getEnvironmentAllocations() {
+		return ENVIRONMENTS.sum();
+	}
+
+	@Override
+	public long getInstanceCreations() {
+		return INSTANCES.sum();
+	}
+
+	@Override
+	public long getMethodBinds() {
+		return BINDS.sum();
+	}
+
+	@Override
+	public long getRuntimeErrors() {
+		return RUNTIME_ERRORS.sum();
+	}
+
+	@Override
+	public void reset() {
+		STATEMENTS.reset();
+		FUNCTION_CALLS.reset();
+		NATIVE_CALLS.reset();
+		ENVIRONMENTS.reset();
+		INSTANCES.reset();
+		BINDS.reset();
+		RUNTIME_ERRORS.reset();
+	}
+}
@@ -0,0 +1,24 @@
+package lox.lox;
+
+/*
+What LoxMetrics shows over JMX, under the name lox.lox:type=Interpreter.
+Every count is the total for all the interpreters in the JVM since it
+started or since the last reset().
+ */
+public interface LoxMetricsMBean {
+	long getStatementsExecuted();
+
+	long getFunctionCalls();
+
+	long getNativeCalls();
+
+	long getEnvironmentAllocations();
+
+	long getInstanceCreations();
+
+	long getMethodBinds();
+
+	long getRuntimeErrors();
+
+	void reset();
+}
@@ -0,0 +1,45 @@
+package lox.lox;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/*
+Lets the Scanner read a memory-mapped file in place instead of decoding it
+into a String first. Lox's syntax is all ASCII, so the scanner can walk the
+raw UTF-8 bytes as if they were chars: every multi-byte sequence only has
+bytes above 0x7F, which never match a token character. Indexes are therefore
+byte offsets, and subSequence() decodes the bytes of a lexeme back into a
+proper String, so non-ASCII text in string literals and comments comes
+through intact.
+ */
+class MappedSource implements CharSequence {
+	private final ByteBuffer bytes;
+
+	MappedSource(ByteBuffer bytes) {
+		this.bytes = bytes;
+	}
+
+	@Override
+	public int length() {
+		return bytes.limit();
+	}
+
+	@Override
+	public char charAt(int index) {
+		return (char) (bytes.get(index) & 0xff);
+	}
+
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		byte[] lexeme = new byte[end - start];
+		for (int i = 0; i < lexeme.length; i++) {
+			lexeme[i] = bytes.get(start + i);
+		}
+		return new String(lexeme, StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public String toString() {
+		return subSequence(0, length()).toString();
+	}
+}
@@ -0,0 +1,288 @@
+package lox.lox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+Runs after the Resolver and rewrites the tree before it is executed. Any
+operator whose operands are all literals is replaced by a literal of its
+result, so `1 + 2 * 3` or `"a" + "b"` inside a loop is computed once here
+instead of on every iteration. An `if` or `while` whose condition is a
+literal loses the branch that can never run.
+
+Nothing is folded that would fail at runtime: `1 + "a"` stays as it is, so
+it still reports its error when, and only if, it is reached. Branches are
+statements, never declarations, so dropping one can't shift the slots the
+Resolver gave to the variables of the enclosing scope.
+
+A node is only rebuilt when one of its children changed. Variables, `this`
+and `super` are returned as they are, with their resolution data intact.
+ */
+class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+	List<Stmt> optimize(List<Stmt> statements) {
+		List<Stmt> optimized = new ArrayList<>(statements.size());
+		for (Stmt statement : statements) {
+			Stmt result = optimize(statement);
+			// A null statement is one that was pruned away entirely.
+			if (result != null) optimized.add(result);
+		}
+		return optimized;
+	}
+
+	Stmt optimize(Stmt stmt) {
+		return stmt.accept(this);
+	}
+
+	private Expr optimize(Expr expr) {
+		return expr.accept(this);
+	}
+
+	// For the places the grammar needs a statement even if it does nothing.
+	private Stmt optimizeBranch(Stmt stmt) {
+		Stmt result = optimize(stmt);
+		if (result == null) return new Stmt.Block(Collections.emptyList());
+		return result;
+	}
+
+	@Override
+	public Expr visitAssignExpr(Expr.Assign expr) {
+		Expr value = optimize(expr.value);
+		if (value == expr.value) return expr;
+
+		Expr.Assign assign = new Expr.Assign(expr.name, value);
+		assign.depth = expr.depth;
+		assign.slot = expr.slot;
+		return assign;
+	}
+
+	@Override
+	public Expr visitBinaryExpr(Expr.Binary expr) {
+		Expr left = optimize(expr.left);
+		Expr right = optimize(expr.right);
+
+		if (left instanceof Expr.Literal && right instanceof Expr.Literal) {
+			Expr folded = fold(expr.operator,
+					((Expr.Literal)left).value, ((Expr.Literal)right).value);
+			if (folded != null) return folded;
+		}
+
+		if (left == expr.left && right == expr.right) return expr;
+		return new Expr.Binary(left, expr.operator, right);
+	}
+
+	/*
+	Mirrors the Interpreter's generic binary operators. Returns null for
+	operand types the operator would reject at runtime.
+	 */
+	private Expr fold(Token operator, Object left, Object right) {
+		switch (operator.type) {
+			case BANG_EQUAL:
+				return new Expr.Literal(!Interpreter.isEqual(left, right));
+			case EQUAL_EQUAL:
+				return new Expr.Literal(Interpreter.isEqual(left, right));
+			case PLUS:
+				if (left instanceof String && right instanceof String) {
+					return new Expr.Literal((String)left + (String)right);
+				}
+		}
+
+		if (!(left instanceof Double && right instanceof Double)) return null;
+		double a = (double)left;
+		double b = (double)right;
+
+		switch (operator.type) {
+			case GREATER: return new Expr.Literal(a > b);
+			case GREATER_EQUAL: return new Expr.Literal(a >= b);
+			case LESS: return new Expr.Literal(a < b);
+			case LESS_EQUAL: return new Expr.Literal(a <= b);
+			case MINUS: return new Expr.Literal(a - b);
+			case PLUS: return new Expr.Literal(a + b);
+			case SLASH: return new Expr.Literal(a / b);
+			case STAR: return new Expr.Literal(a * b);
+		}
+
+		return null;
+	}
+
+	@Override
+	public Expr visitCallExpr(Expr.Call expr) {
+		Expr callee = optimize(expr.callee);
+		boolean changed = callee != expr.callee;
+
+		List<Expr> arguments = new ArrayList<>(expr.arguments.size());
+		for (Expr argument : expr.arguments) {
+			Expr optimized = optimize(argument);
+			changed |= optimized != argument;
+			arguments.add(optimized);
+		}
+
+		if (!changed) return expr;
+		return new Expr.Call(callee, expr.paren, arguments);
+	}
+
+	@Override
+	public Expr visitGetExpr(Expr.Get expr) {
+		Expr object = optimize(expr.object);
+		if (object == expr.object) return expr;
+		return new Expr.Get(object, expr.name);
+	}
+
+	@Override
+	public Expr visitGroupingExpr(Expr.Grouping expr) {
+		// Parentheses only matter to the parser.
+		return optimize(expr.expression);
+	}
+
+	@Override
+	public Expr visitLiteralExpr(Expr.Literal expr) {
+		return expr;
+	}
+
+	@Override
+	public Expr visitLogicalExpr(Expr.Logical expr) {
+		Expr left = optimize(expr.left);
+		Expr right = optimize(expr.right);
+
+		// The left operand decides whether the right one is the result.
+		if (left instanceof Expr.Literal) {
+			boolean truthy = Interpreter.isTruthy(((Expr.Literal)left).value);
+			if (expr.operator.type == TokenType.OR) {
+				return truthy ? left : right;
+			}
+			return truthy ? right : left;
+		}
+
+		if (left == expr.left && right == expr.right) return expr;
+		return new Expr.Logical(left, expr.operator, right);
+	}
+
+	@Override
+	public Expr visitSetExpr(Expr.Set expr) {
+		Expr object = optimize(expr.object);
+		Expr value = optimize(expr.value);
+		if (object == expr.object && value == expr.value) return expr;
+		return new Expr.Set(object, expr.name, value);
+	}
+
+	@Override
+	public Expr visitSuperExpr(Expr.Super expr) {
+		return expr;
+	}
+
+	@Override
+	public Expr visitThisExpr(Expr.This expr) {
+		return expr;
+	}
+
+	@Override
+	public Expr visitUnaryExpr(Expr.Unary expr) {
+		Expr right = optimize(expr.right);
+
+		if (right instanceof Expr.Literal) {
+			Object value = ((Expr.Literal)right).value;
+			if (expr.operator.type == TokenType.BANG) {
+				return new Expr.Literal(!Interpreter.isTruthy(value));
+			}
+			if (value instanceof Double) {
+				return new Expr.Literal(-(double)value);
+			}
+		}
+
+		if (right == expr.right) return expr;
+		return new Expr.Unary(expr.operator, right);
+	}
+
+	@Override
+	public Expr visitVariableExpr(Expr.Variable expr) {
+		return expr;
+	}
+
+	@Override
+	public Stmt visitBlockStmt(Stmt.Block stmt) {
+		return new Stmt.Block(optimize(stmt.statements));
+	}
+
+	@Override
+	public Stmt visitClassStmt(Stmt.Class stmt) {
+		List<Stmt.Function> methods = new ArrayList<>(stmt.methods.size());
+		for (Stmt.Function method : stmt.methods) {
+			methods.add((Stmt.Function)optimize(method));
+		}
+		return new Stmt.Class(stmt.name, stmt.superclass, methods);
+	}
+
+	@Override
+	public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+		Expr expression = optimize(stmt.expression);
+		if (expression == stmt.expression) return stmt;
+		return new Stmt.Expression(expression);
+	}
+
+	@Override
+	public Stmt visitFunctionStmt(Stmt.Function stmt) {
+		Stmt.Function function = new Stmt.Function(stmt.name, stmt.params,
+				optimize(stmt.body));
+		function.hasClosures = stmt.hasClosures;
+		return function;
+	}
+
+	@Override
+	public Stmt visitIfStmt(Stmt.If stmt) {
+		Expr condition = optimize(stmt.condition);
+
+		if (condition instanceof Expr.Literal) {
+			if (Interpreter.isTruthy(((Expr.Literal)condition).value)) {
+				return optimize(stmt.thenBranch);
+			}
+			if (stmt.elseBranch == null) return null;
+			return optimize(stmt.elseBranch);
+		}
+
+		Stmt thenBranch = optimizeBranch(stmt.thenBranch);
+		Stmt elseBranch = null;
+		if (stmt.elseBranch != null) elseBranch = optimize(stmt.elseBranch);
+		return new Stmt.If(condition, thenBranch, elseBranch);
+	}
+
+	@Override
+	public Stmt visitPrintStmt(Stmt.Print stmt) {
+		Expr expression = optimize(stmt.expression);
+		if (expression == stmt.expression) return stmt;
+		return new Stmt.Print(expression);
+	}
+
+	@Override
+	public Stmt visitReturnStmt(Stmt.Return stmt) {
+		if (stmt.value == null) return stmt;
+
+		Expr value = optimize(stmt.value);
+		if (value == stmt.value) return stmt;
+
+		Stmt.Return result = new Stmt.Return(stmt.keyword, value);
+		result.tailCall = stmt.tailCall;
+		return result;
+	}
+
+	@Override
+	public Stmt visitVarStmt(Stmt.Var stmt) {
+		if (stmt.initializer == null) return stmt;
+
+		Expr initializer = optimize(stmt.initializer);
+		if (initializer == stmt.initializer) return stmt;
+		return new Stmt.Var(stmt.name, initializer);
+	}
+
+	@Override
+	public Stmt visitWhileStmt(Stmt.While stmt) {
+		Expr condition = optimize(stmt.condition);
+
+		// A loop that never runs; a constant true one has to stay.
+		if (condition instanceof Expr.Literal &&
+				!Interpreter.isTruthy(((Expr.Literal)condition).value)) {
+			return null;
+		}
+
+		return new Stmt.While(condition, optimizeBranch(stmt.body));
+	}
+}
@@ -0,0 +1,104 @@
+package lox.lox;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/*
+Where `print` writes. System.out is synchronized and flushes on every
+newline, which makes printing each line a system call. This encodes lines
+straight into one large ByteBuffer and only writes it to the channel when
+it fills up or when flush() is called: before exiting, before a runtime
+error is reported, and after every line if the sink was made to flush each
+line, as the REPL's is.
+
+Like System.out, it ignores errors writing to the channel, such as a closed
+pipe, and drops the output. It isn't thread-safe; every interpreter prints
+from one thread.
+ */
+public final class OutputSink {
+	static final int DEFAULT_CAPACITY = 64 * 1024;
+
+	private static final byte[] LINE_SEPARATOR =
+			System.lineSeparator().getBytes();
+
+	private static OutputSink standardOutput;
+
+	private final WritableByteChannel channel;
+	private final ByteBuffer buffer;
+	private final boolean flushEachLine;
+	private final CharsetEncoder encoder = Charset.defaultCharset().newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+	OutputSink(WritableByteChannel channel, int capacity,
+	           boolean flushEachLine) {
+		if (capacity < LINE_SEPARATOR.length + 16) {
+			throw new IllegalArgumentException("Output buffer is too small.");
+		}
+		this.channel = channel;
+		// Only a FileChannel can write a direct buffer without copying it.
+		this.buffer = channel instanceof FileChannel
+				? ByteBuffer.allocateDirect(capacity)
+				: ByteBuffer.allocate(capacity);
+		this.flushEachLine = flushEachLine;
+	}
+
+	static OutputSink standardOutput(int capacity, boolean flushEachLine) {
+		return new OutputSink(new FileOutputStream(FileDescriptor.out)
+				.getChannel(), capacity, flushEachLine);
+	}
+
+	/*
+	The sink used when no other is given, shared so that everything printed
+	to standard output stays in order. It is flushed when the JVM exits.
+	 */
+	public static synchronized OutputSink standardOutput() {
+		if (standardOutput == null) {
+			OutputSink sink = standardOutput(DEFAULT_CAPACITY, false);
+			Runtime.getRuntime().addShutdownHook(new Thread(sink::flush));
+			standardOutput = sink;
+		}
+		return standardOutput;
+	}
+
+	public void println(String text) {
+		CharBuffer chars = CharBuffer.wrap(text);
+		while (encoder.encode(chars, buffer, true).isOverflow()) {
+			drain();
+		}
+		while (encoder.flush(buffer) == CoderResult.OVERFLOW) {
+			drain();
+		}
+		encoder.reset();
+
+		if (buffer.remaining() < LINE_SEPARATOR.length) drain();
+		buffer.put(LINE_SEPARATOR);
+
+		if (flushEachLine) flush();
+	}
+
+	public void flush() {
+		drain();
+	}
+
+	private void drain() {
+		buffer.flip();
+		try {
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		} catch (IOException error) {
+			// Dropped, like System.out does.
+		}
+		buffer.clear();
+	}
+}
@@ -3,6 +3,7 @@ package lox.lox;
 import java.sql.Array;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 
 import static lox.lox.TokenType.*;
@@ -10,14 +11,32 @@ import static lox.lox.TokenType.*;
 class Parser {
 //    public class Parser {
 
-    private static class ParseError extends RuntimeException {}
+    private static class ParseError extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+    }
 
-    private final List<Token> tokens;
-    private int current = 0;
+    /*
+    The parser never looks further than one token ahead or one token back, so
+    it only keeps those two and pulls the rest from the scanner on demand.
+     */
+    private final Iterator<Token> tokens;
+    private final ErrorReporter errors;
+    private Token current;
+    private Token previous;
 
     // typical constructor in Java
-    Parser(List<Token> tokens) {
+    Parser(Iterator<Token> tokens) {
+        this(tokens, Lox.errors);
+    }
+
+    Parser(Iterator<Token> tokens, ErrorReporter errors) {
         this.tokens = tokens;
+        this.errors = errors;
+        this.current = tokens.next();
+    }
+
+    Parser(List<Token> tokens) {
+        this(tokens.iterator());
     }
 
     //Expr parse() {
@@ -37,6 +56,19 @@ class Parser {
         return statements;
     }
 
+    /*
+    The same loop, one top-level declaration at a time, for callers that want
+    to deal with each declaration and drop it before parsing the next one.
+    Returns null for a declaration that had a syntax error.
+     */
+    boolean hasNextDeclaration() {
+        return !isAtEnd();
+    }
+
+    Stmt nextDeclaration() {
+        return declaration();
+    }
+
     private Expr expression() {
         //return equality();
         return assignment();
@@ -461,7 +493,10 @@ class Parser {
     }
 
     private Token advance() {
-        if (!isAtEnd()) current++;
+        if (!isAtEnd()) {
+            previous = current;
+            current = tokens.next();
+        }
         return previous();
     }
 
@@ -470,15 +505,15 @@ class Parser {
     }
 
     private Token peek() {
-        return tokens.get(current);
+        return current;
     }
 
     private Token previous() {
-        return tokens.get(current - 1);
+        return previous;
     }
 
     private ParseError error(Token token, String message) {
-        Lox.error(token, message);
+        errors.error(token, message);
         return new ParseError();
     }
 
@@ -0,0 +1,132 @@
+package lox.lox;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+A sampling profiler that sees Lox functions instead of the interpreter's
+own frames. The interpreter keeps a shadow stack of the Lox calls it is in,
+each with the line of the call that made it, and a daemon thread copies
+that stack every INTERVAL_MILLIS and counts how often it saw each one. At
+the end the counts are written as collapsed stacks, one
+`<script>;outer:3;inner:12 <samples>` line per distinct stack, which is
+what flame graph tools take as input.
+
+Entering and leaving a call are a couple of array stores and a release
+store of the depth, and only the sampler thread ever allocates, so the
+profiler can stay on in production. The sampler reads the stack without
+stopping the interpreter, so a sample taken in the middle of a call or a
+return can have its top frame wrong; over many samples that doesn't matter.
+ */
+final class Profiler {
+	static final int INTERVAL_MILLIS = 10;
+
+	private static final VarHandle DEPTH;
+
+	static {
+		try {
+			DEPTH = MethodHandles.lookup().findVarHandle(Profiler.class,
+					"depth", int.class);
+		} catch (ReflectiveOperationException error) {
+			throw new ExceptionInInitializerError(error);
+		}
+	}
+
+	// Written only by the interpreter's thread.
+	private Object[] callees = new Object[64];
+	private int[] lines = new int[64];
+	// Published to the sampler through DEPTH.
+	private int depth = 0;
+
+	// Owned by the sampler thread until it has been stopped.
+	private final Map<String, Long> samples = new HashMap<>();
+	private final Thread sampler;
+	private volatile boolean running = true;
+
+	Profiler() {
+		sampler = new Thread(this::sample, "lox-profiler");
+		sampler.setDaemon(true);
+		sampler.start();
+	}
+
+	void enter(Object callee, int line) {
+		int top = depth;
+		if (top == callees.length) {
+			callees = Arrays.copyOf(callees, top * 2);
+			lines = Arrays.copyOf(lines, top * 2);
+		}
+		callees[top] = callee;
+		lines[top] = line;
+		DEPTH.setRelease(this, top + 1);
+	}
+
+	void exit() {
+		int top = depth - 1;
+		callees[top] = null;
+		DEPTH.setRelease(this, top);
+	}
+
+	// A tail call runs in the frame of the call it replaces.
+	void replace(Object callee) {
+		callees[depth - 1] = callee;
+	}
+
+	// Stops sampling and writes the collapsed stacks to the file.
+	void stop(Path path) throws IOException {
+		running = false;
+		sampler.interrupt();
+		try {
+			sampler.join();
+		} catch (InterruptedException error) {
+			Thread.currentThread().interrupt();
+		}
+
+		try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(path,
+				StandardCharsets.UTF_8))) {
+			for (Map.Entry<String, Long> stack : samples.entrySet()) {
+				out.println(stack.getKey() + " " + stack.getValue());
+			}
+		}
+	}
+
+	private void sample() {
+		StringBuilder stack = new StringBuilder();
+		while (running) {
+			try {
+				Thread.sleep(INTERVAL_MILLIS);
+			} catch (InterruptedException error) {
+				break;
+			}
+
+			int top = (int)DEPTH.getAcquire(this);
+			Object[] callees = this.callees;
+			int[] lines = this.lines;
+			// The arrays may have been read before the ones that were grown.
+			top = Math.min(top, Math.min(callees.length, lines.length));
+
+			stack.setLength(0);
+			stack.append("<script>");
+			for (int i = 0; i < top; i++) {
+				stack.append(';').append(name(callees[i]))
+						.append(':').append(lines[i]);
+			}
+			samples.merge(stack.toString(), 1L, Long::sum);
+		}
+	}
+
+	private static String name(Object callee) {
+		if (callee instanceof LoxFunction) return ((LoxFunction)callee).name();
+		if (callee instanceof LoxClass) return ((LoxClass)callee).name;
+		// A frame being pushed or popped as the sample was taken.
+		if (callee == null) return "?";
+		return "<native>";
+	}
+}
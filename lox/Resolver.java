@@ -3,14 +3,10 @@ package lox.lox;
 import java.util.*;
 
 class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
-	private final Interpreter interpreter;
-	private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+	private final Stack<Map<String, Local>> scopes = new Stack<>();
 	//private Stmt.Var stmt;
 	private FunctionType currentFunction = FunctionType.NONE;
-
-	Resolver(Interpreter interpreter) {
-		this.interpreter = interpreter;
-	}
+	private Stmt.Function currentDeclaration = null;
 
 	private enum FunctionType {
 		NONE,
@@ -27,6 +23,30 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
 	private ClassType currentClass = ClassType.NONE;
 
+	private final ErrorReporter errors;
+
+	Resolver() {
+		this(Lox.errors);
+	}
+
+	Resolver(ErrorReporter errors) {
+		this.errors = errors;
+	}
+
+	/*
+	Each local gets the slot it will occupy in its runtime Environment. Slots
+	are handed out in declaration order, which is the same order the
+	interpreter defines them in.
+	 */
+	private static class Local {
+		final int slot;
+		boolean defined = false;
+
+		Local(int slot) {
+			this.slot = slot;
+		}
+	}
+
 	void resolve(List<Stmt> statements) {
 		for (Stmt statement : statements) {
 			resolve(statement);
@@ -35,6 +55,9 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
 	@Override
 	public Void visitBlockStmt(Stmt.Block stmt) {
+		beginScope();
+		resolve(stmt.statements);
+		endScope();
 		return null;
 	}
 
@@ -48,7 +71,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
 		if (stmt.superclass != null &&
 			stmt.name.lexeme.equals(stmt.superclass.name.lexeme)) {
-			Lox.error(stmt.superclass.name,
+			errors.error(stmt.superclass.name,
 					"A class can't inherit from itself.");
 		}
 
@@ -68,11 +91,11 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 		 */
 		if (stmt.superclass != null) {
 			beginScope();
-			scopes.peek().put("super", true);
+			defineSynthetic("super");
 		}
 
 		beginScope();
-		scopes.peek().put("this", true);
+		defineSynthetic("this");
 
 		for (Stmt.Function method : stmt.methods) {
 			FunctionType declaration = FunctionType.METHOD;
@@ -124,7 +147,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 	@Override
 	public Void visitReturnStmt(Stmt.Return stmt) {
 		if (currentFunction == FunctionType.NONE) {
-			Lox.error(stmt.keyword, "Can't return from top-level code.");
+			errors.error(stmt.keyword, "Can't return from top-level code.");
 		}
 
 		if (stmt.value != null) {
@@ -133,10 +156,20 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 			error to return a value from inside an `init()` method
 			 */
 			if (currentFunction == FunctionType.INITIALIZER) {
-				Lox.error(stmt.keyword,
+				errors.error(stmt.keyword,
 						"Can't return a value from an initializer.");
 			}
 			resolve(stmt.value);
+
+			/*
+			Nothing is left to do in this function once the call returns, so
+			LoxFunction can run the callee in place of it instead of on top of
+			it. An initializer has no tail calls; it always returns `this`.
+			 */
+			if (stmt.value instanceof Expr.Call &&
+					currentFunction != FunctionType.INITIALIZER) {
+				stmt.tailCall = true;
+			}
 		}
 
 		return null;
@@ -212,10 +245,10 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 	@Override
 	public Void visitSuperExpr(Expr.Super expr) {
 		if (currentClass == ClassType.NONE) {
-			Lox.error(expr.keyword,
+			errors.error(expr.keyword,
 					"Can't use 'super' outside of a class.");
 		} else if (currentClass != ClassType.SUBCLASS) {
-			Lox.error(expr.keyword,
+			errors.error(expr.keyword,
 					"Can't use 'super' in a class with no superclass");
 		}
 
@@ -226,7 +259,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 	@Override
 	public Void visitThisExpr(Expr.This expr) {
 		if (currentClass == ClassType.NONE) {
-			Lox.error(expr.keyword,
+			errors.error(expr.keyword,
 					"Can't use 'this' outside of a class.");
 			return null;
 		}
@@ -250,8 +283,9 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 	@Override
 	public Void visitVariableExpr(Expr.Variable expr) {
 		if (!scopes.isEmpty() &&
-				scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
-			Lox.error(expr.name, "Can't read local variable in " +
+				scopes.peek().containsKey(expr.name.lexeme) &&
+				!scopes.peek().get(expr.name.lexeme).defined) {
+			errors.error(expr.name, "Can't read local variable in " +
 					"its own initializer.");
 		}
 
@@ -259,7 +293,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 		return null;
 	}
 
-	private void resolve(Stmt stmt) {
+	void resolve(Stmt stmt) {
 		stmt.accept(this);
 	}
 
@@ -271,6 +305,13 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 	private void resolveFunction(Stmt.Function function, FunctionType type) {
 		FunctionType enclosingFunction = currentFunction;
 		currentFunction = type;
+		/*
+		A function (or method) declared in the body of another one keeps that
+		call's environment alive, so the caller can't reuse it for a tail call.
+		 */
+		if (currentDeclaration != null) currentDeclaration.hasClosures = true;
+		Stmt.Function enclosingDeclaration = currentDeclaration;
+		currentDeclaration = function;
 
 		beginScope();
 		for (Token param : function.params) {
@@ -285,10 +326,11 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 		function body, we restore the field to that value.
 		 */
 		currentFunction = enclosingFunction;
+		currentDeclaration = enclosingDeclaration;
 	}
 
 	private void beginScope() {
-		scopes.push(new HashMap<String, Boolean>());
+		scopes.push(new HashMap<String, Local>());
 	}
 
 	private void endScope() {
@@ -307,13 +349,14 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 	private void declare(Token name) {
 		if (scopes.isEmpty()) return;
 
-		Map<String, Boolean> scope = scopes.peek();
+		Map<String, Local> scope = scopes.peek();
 		if (scope.containsKey(name.lexeme)) {
-			Lox.error(name,
+			errors.error(name,
 					"Already a variable with this name in this scope.");
+			return;
 		}
 
-		scope.put(name.lexeme, false);
+		scope.put(name.lexeme, new Local(scope.size()));
 	}
 
 	/*
@@ -324,13 +367,42 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 	 */
 	private void define(Token name) {
 		if (scopes.isEmpty()) return;
-		scopes.peek().put(name.lexeme, true);
+		scopes.peek().get(name.lexeme).defined = true;
 	}
 
+	/*
+	"this" and "super" live alone in the environments the interpreter creates
+	for them, so they always take the first slot.
+	 */
+	private void defineSynthetic(String name) {
+		Local local = new Local(scopes.peek().size());
+		local.defined = true;
+		scopes.peek().put(name, local);
+	}
+
+	/*
+	The resolution is stored on the node itself, so the interpreter reads it
+	with a field access instead of looking the node up in a side table. Nodes
+	we never find a local for keep their depth of -1 and are treated as globals.
+	 */
 	private void resolveLocal(Expr expr, Token name) {
 		for (int i = scopes.size() - 1; i >= 0; i--) {
-			if (scopes.get(i).containsKey(name.lexeme)) {
-				interpreter.resolve(expr, scopes.size() - 1 - i);
+			Local local = scopes.get(i).get(name.lexeme);
+			if (local != null) {
+				int depth = scopes.size() - 1 - i;
+				if (expr instanceof Expr.Variable) {
+					((Expr.Variable) expr).depth = depth;
+					((Expr.Variable) expr).slot = local.slot;
+				} else if (expr instanceof Expr.Assign) {
+					((Expr.Assign) expr).depth = depth;
+					((Expr.Assign) expr).slot = local.slot;
+				} else if (expr instanceof Expr.This) {
+					((Expr.This) expr).depth = depth;
+					((Expr.This) expr).slot = local.slot;
+				} else if (expr instanceof Expr.Super) {
+					((Expr.Super) expr).depth = depth;
+					((Expr.Super) expr).slot = local.slot;
+				}
 				return;
 			}
 		}
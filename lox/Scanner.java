@@ -2,15 +2,24 @@ package lox.lox;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 
 import static lox.lox.TokenType.*;
 
-public class Scanner {
+/*
+The scanner hands out tokens one at a time as the Parser asks for them, so
+the whole token list never has to exist at once. It reads from any
+CharSequence: a String for the REPL, or a MappedSource over a memory-mapped
+file so the source isn't copied onto the heap either.
+ */
+public class Scanner implements Iterator<Token> {
     
-    private final String source;
-    private final List<Token> tokens = new ArrayList<>();
+    private final CharSequence source;
+    private final ErrorReporter errors;
+    private boolean reachedEnd = false;
 
     // We use a HashMap to store the keywords
     private static final Map<String, TokenType> keywords;
@@ -35,6 +44,10 @@ public class Scanner {
         keywords.put("while",   WHILE);
     };
 
+    // The lexeme of each punctuation token type, filled in as seen.
+    private static final String[] punctuation =
+            new String[TokenType.values().length];
+
     /*start and current fields are offsets that index into the string
      * start points to the first character in the lexeme being scanned
      * current points at the character currently being considered
@@ -43,54 +56,101 @@ public class Scanner {
     private int start = 0;
     private int current = 0;
     private int line = 1;
+    // The line the last token handed out starts on.
+    private int startLine = 1;
+    /*
+    The symbols this scanner has handed out recently, indexed by hash. A name
+    that is used again is found here without copying it out of the source.
+     */
+    private final String[] recentSymbols = new String[256];
+    // Every symbol this scanner has handed out. See Symbols.
+    private final Symbols symbols = new Symbols();
+
+    Scanner(CharSequence source) {
+        this(source, Lox.errors);
+    }
 
-    Scanner(String source) {
+    Scanner(CharSequence source, ErrorReporter errors) {
         this.source = source;
+        this.errors = errors;
     }
 
     List<Token> scanTokens() {
+        List<Token> tokens = new ArrayList<>();
+        while (hasNext()) {
+            tokens.add(next());
+        }
+        return tokens;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !reachedEnd;
+    }
+
+    /*
+    Scans just far enough to produce the next token, skipping whitespace and
+    comments. The last token handed out is always EOF.
+     */
+    @Override
+    public Token next() {
+        if (reachedEnd) throw new NoSuchElementException();
+
         while (!isAtEnd()) {
             // we are at the beginning of the next lexeme
             start = current;
-            scanToken();
+            startLine = line;
+            Token token = scanToken();
+            if (token != null) return token;
         }
 
-        tokens.add(new Token(EOF, "", null, line));
-        return tokens;
+        reachedEnd = true;
+        start = current;
+        startLine = line;
+        return new Token(EOF, "", null, line);
+    }
+
+    /*
+    Where the last token handed out starts. The parser only ever looks one
+    token ahead, so between declarations this is the start of the next one.
+     */
+    int tokenStart() {
+        return start;
     }
 
-    private void scanToken() {
+    int tokenLine() {
+        return startLine;
+    }
+
+    // Returns null when the characters scanned don't produce a token.
+    private Token scanToken() {
         char c = advance();
         switch (c) {
-            case '(': addToken(LEFT_PAREN); break;
-            case ')': addToken(RIGHT_PAREN); break;
-            case '{': addToken(LEFT_BRACE); break;
-            case '}': addToken(RIGHT_BRACE); break;
-            case ',': addToken(COMMA); break;
-            case '.': addToken(DOT); break;
-            case '-': addToken(MINUS); break;
-            case '+': addToken(PLUS); break;
-            case ';': addToken(SEMICOLON); break;
-            case '*': addToken(STAR); break;
+            case '(': return token(LEFT_PAREN);
+            case ')': return token(RIGHT_PAREN);
+            case '{': return token(LEFT_BRACE);
+            case '}': return token(RIGHT_BRACE);
+            case ',': return token(COMMA);
+            case '.': return token(DOT);
+            case '-': return token(MINUS);
+            case '+': return token(PLUS);
+            case ';': return token(SEMICOLON);
+            case '*': return token(STAR);
             case '!':
-                addToken(match('=') ? BANG_EQUAL : BANG);
-                break;
+                return token(match('=') ? BANG_EQUAL : BANG);
             case '=':
-                addToken(match('=') ? EQUAL_EQUAL : EQUAL);
-                break;
+                return token(match('=') ? EQUAL_EQUAL : EQUAL);
             case '<':
-                addToken(match('=') ? LESS_EQUAL : LESS);
-                break;
+                return token(match('=') ? LESS_EQUAL : LESS);
             case '>':
-                addToken(match('=') ? GREATER_EQUAL : GREATER);
-                break;
+                return token(match('=') ? GREATER_EQUAL : GREATER);
             // now we consider '/' mark
             case '/':
                 if (match('/')) {
                     // A comment goes until the end of the line
                     while (peek() != '\n' && !isAtEnd()) advance();
                 } else {
-                    addToken(SLASH);
+                    return token(SLASH);
                 }
                 break;
 
@@ -106,7 +166,7 @@ public class Scanner {
                 line++;
                 break;
 
-            case '"': string(); break;
+            case '"': return string();
 
             /* Now scanner is getting smarter.
              * It can handle fairly free-form code like:
@@ -116,47 +176,49 @@ public class Scanner {
              */
             default:
                 if (isDigit(c)) {
-                    number();
+                    return number();
                 } else if (isAlpha(c)) {
-                    identifier();
+                    return identifier();
                 } else {
-                    Lox.error(line, "Unexcepted character.");
+                    errors.error(line, "Unexcepted character.");
                 }
                 break;
         }
+
+        return null;
     }
 
-    private void identifier() {
+    private Token identifier() {
         while (isAlphaNumeric(peek())) advance();
 
         // after we scan the identifier, we check to see 
         // if it matches anything in the map
-        String text = source.substring(start, current);
+        String text = symbol(start, current);
         TokenType type = keywords.get(text);
         if (type == null) type = IDENTIFIER;
-        addToken(type);
+        return new Token(type, text, null, line);
     }
 
-    private void string() {
+    private Token string() {
         while (peek() != '"' && !isAtEnd()) {
             if (peek() == '\n') line++;
             advance();
         }
 
         if (isAtEnd()) {
-            Lox.error(line, "Unterminated string.");
-            return;
+            errors.error(line, "Unterminated string.");
+            return null;
         }
 
         // The closing ".
         advance();
 
         // Trim the surrounding quotes
-        String value = source.substring(start + 1, current - 1);
-        addToken(STRING, value);
+        String value = symbol(start + 1, current - 1);
+        return token(STRING, value);
     }
 
-    private void number() {
+    private Token number() {
         while (isDigit(peek())) advance();
 
         // Look for a fractional part
@@ -167,7 +229,8 @@ public class Scanner {
             while (isDigit(peek())) advance();
         }
 
-        addToken(NUMBER, Double.parseDouble(source.substring(start, current)));
+        String text = source.subSequence(start, current).toString();
+        return new Token(NUMBER, text, Double.parseDouble(text), line);
     }
 
     private boolean match(char expected) {
@@ -210,12 +273,57 @@ public class Scanner {
         return source.charAt(current++);
     }
 
-    private void addToken(TokenType type) {
-        addToken(type, null);
+    private Token token(TokenType type) {
+        return token(type, null);
+    }
+
+    private Token token(TokenType type, Object literal) {
+        String text;
+        if (type == STRING) {
+            text = symbol(start, current);
+        } else {
+            // Punctuation is spelled the same every time.
+            text = punctuation[type.ordinal()];
+            if (text == null) {
+                text = source.subSequence(start, current).toString();
+                punctuation[type.ordinal()] = text;
+            }
+        }
+        return new Token(type, text, literal, line);
+    }
+
+    // The interned text of source[from, to). See Symbols.
+    private String symbol(int from, int to) {
+        int hash = 0;
+        boolean ascii = true;
+        for (int i = from; i < to; i++) {
+            char c = source.charAt(i);
+            ascii &= c < 0x80;
+            hash = 31 * hash + c;
+        }
+        /*
+        A MappedSource's chars are UTF-8 bytes, which only match the chars of
+        the decoded text when they are ASCII.
+         */
+        if (!ascii) return symbols.intern(source.subSequence(from, to).toString());
+
+        int index = (hash ^ (hash >>> 16)) & (recentSymbols.length - 1);
+        String recent = recentSymbols[index];
+        if (recent != null && recent.hashCode() == hash &&
+                matches(recent, from, to)) {
+            return recent;
+        }
+
+        String symbol = symbols.intern(source.subSequence(from, to).toString());
+        recentSymbols[index] = symbol;
+        return symbol;
     }
 
-    private void addToken(TokenType type, Object literal) {
-        String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+    private boolean matches(String symbol, int from, int to) {
+        if (symbol.length() != to - from) return false;
+        for (int i = from; i < to; i++) {
+            if (symbol.charAt(i - from) != source.charAt(i)) return false;
+        }
+        return true;
     }
 }
@@ -0,0 +1,123 @@
+package lox.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+/*
+The parsed, resolved and optimized form of a script, kept on disk next to
+it as `<script>c` (fib.lox gets fib.loxc) so later runs of an unchanged
+script skip the whole front end. The file starts with a magic number, the
+format version and the SHA-256 of the source it was made from, followed by
+what AstWriter wrote. A cache whose hash doesn't match the source is stale
+and is replaced on the next successful compile; scripts with errors are
+never cached, so their errors are reported on every run.
+
+The cache is only an optimization, so any problem with it is a miss: a file
+that can't be read, is damaged or comes from another version is ignored,
+and one that can't be written isn't. A new cache is written to a temporary
+file and moved into place, so a run never sees half of one.
+ */
+final class ScriptCache {
+	private static final int MAGIC = 0x4c4f5843; // "LOXC"
+	// Bump whenever AstWriter or a node's fields change.
+	private static final int VERSION = 1;
+
+	private final Path script;
+	private final Path path;
+	private final byte[] hash;
+
+	ScriptCache(Path script, ByteBuffer source) {
+		this.script = script;
+		this.path = script.resolveSibling(script.getFileName() + "c");
+		this.hash = hash(source);
+	}
+
+	// The cached program, or null if there is no usable cache.
+	List<Stmt> load() {
+		try (FileChannel channel = FileChannel.open(path,
+				StandardOpenOption.READ)) {
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					channel.size());
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+				return null;
+			}
+			byte[] cachedHash = new byte[hash.length];
+			buffer.get(cachedHash);
+			if (!Arrays.equals(cachedHash, hash)) return null;
+
+			List<Stmt> statements = new AstReader(buffer).read();
+			return buffer.hasRemaining() ? null : statements;
+		} catch (IOException | RuntimeException error) {
+			return null;
+		}
+	}
+
+	void store(List<Stmt> statements) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.write(hash);
+			new AstWriter().write(statements, out);
+			out.flush();
+			replace(path, bytes.toByteArray(), script);
+		} catch (IOException error) {
+			// The next run parses the script again.
+		}
+	}
+
+	/*
+	Writes a temporary file next to `path` and moves it into place, so no one
+	reading `path` ever sees a partly written file. A temporary file is only
+	readable by its owner, so it is first given the read and write
+	permissions of `source`: a cache is as shared as the script it was made
+	from.
+	 */
+	static void replace(Path path, byte[] contents, Path source) throws IOException {
+		Path temporary = Files.createTempFile(path.toAbsolutePath().getParent(),
+				path.getFileName().toString(), ".tmp");
+		try {
+			Files.write(temporary, contents);
+			try {
+				Set<PosixFilePermission> permissions =
+						Files.getPosixFilePermissions(source);
+				permissions.remove(PosixFilePermission.OWNER_EXECUTE);
+				permissions.remove(PosixFilePermission.GROUP_EXECUTE);
+				permissions.remove(PosixFilePermission.OTHERS_EXECUTE);
+				Files.setPosixFilePermissions(temporary, permissions);
+			} catch (UnsupportedOperationException error) {
+				// Not a POSIX file system; it keeps its default permissions.
+			}
+			Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temporary);
+		}
+	}
+
+	static byte[] hash(ByteBuffer source) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			// A duplicate, so the caller's buffer is left where it was.
+			digest.update(source.duplicate());
+			return digest.digest();
+		} catch (NoSuchAlgorithmException error) {
+			// Every Java platform has to provide SHA-256.
+			throw new IllegalStateException(error);
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package lox.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+A hidden class describing the layout of an instance's fields. Instances of a
+class that get the same fields assigned in the same order end up sharing one
+Shape, so the name-to-slot map is paid for once per layout instead of once per
+object, and the instance itself only needs a plain array of values.
+
+Shapes are immutable. Adding a field moves the instance to a child shape,
+and the transition is remembered so every instance taking the same path
+reuses the same child.
+ */
+class Shape {
+	final int fieldCount;
+	private final Map<String, Integer> slots;
+	private final Map<String, Shape> transitions = new HashMap<>();
+
+	Shape() {
+		this.fieldCount = 0;
+		this.slots = new HashMap<>();
+	}
+
+	private Shape(Shape parent, String name) {
+		this.fieldCount = parent.fieldCount + 1;
+		this.slots = new HashMap<>(parent.slots);
+		this.slots.put(name, parent.fieldCount);
+	}
+
+	// Returns -1 if this shape has no field with that name.
+	int slotOf(String name) {
+		Integer slot = slots.get(name);
+		if (slot == null) return -1;
+		return slot;
+	}
+
+	// The field names, in slot order.
+	String[] fieldNames() {
+		String[] names = new String[fieldCount];
+		for (Map.Entry<String, Integer> slot : slots.entrySet()) {
+			names[slot.getValue()] = slot.getKey();
+		}
+		return names;
+	}
+
+	Shape withField(String name) {
+		Shape next = transitions.get(name);
+		if (next == null) {
+			next = new Shape(this, name);
+			transitions.put(name, next);
+		}
+		return next;
+	}
+}
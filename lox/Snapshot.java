@@ -0,0 +1,410 @@
+package lox.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+The global state a prelude leaves behind, saved next to it as `<prelude>s`
+so later runs can restore it instead of running the prelude again. It holds
+every object reachable from the globals: environments, functions with their
+closures, classes and instances, plus the declarations of the functions,
+written with AstWriter. Natives such as `clock` are saved by the global name
+they were found under and taken from the new interpreter on restore.
+
+Like a ScriptCache, a snapshot is keyed by the SHA-256 of the prelude's
+source, and one that is missing, stale or damaged is ignored. Restoring
+only brings back state: anything the prelude printed is printed only on the
+runs that really execute it.
+
+Objects are numbered so that each comes after everything needed to create
+it (an environment's enclosing one, a function's closure, a class's
+superclass and methods, an instance's class), and are recreated in that
+order. What they contain, global and local variables and instance fields,
+can refer to any object, so it is filled in once all of them exist.
+ */
+final class Snapshot {
+	private static final int MAGIC = 0x4c4f5853; // "LOXS"
+	// Bump whenever the format or AstWriter changes.
+	private static final int VERSION = 1;
+
+	// What each object is, and what its creation record holds.
+	private static final byte GLOBALS = 0;     // nothing
+	private static final byte ENVIRONMENT = 1; // enclosing
+	private static final byte FUNCTION = 2;    // declaration, closure, isInitializer
+	private static final byte CLASS = 3;       // name, superclass, methods
+	private static final byte INSTANCE = 4;    // class
+	private static final byte NATIVE = 5;      // global name
+
+	// Values in environments and fields.
+	private static final byte NIL = 0;
+	private static final byte FALSE = 1;
+	private static final byte TRUE = 2;
+	private static final byte NUMBER = 3;
+	private static final byte STRING = 4;
+	private static final byte OBJECT = 5;
+
+	private final Path prelude;
+	private final Path path;
+	private final byte[] hash;
+
+	Snapshot(Path prelude, ByteBuffer source) {
+		this.prelude = prelude;
+		this.path = prelude.resolveSibling(prelude.getFileName() + "s");
+		this.hash = ScriptCache.hash(source);
+	}
+
+	/*
+	Defines the saved globals in the interpreter's. Returns false, without
+	touching the interpreter, if there is no usable snapshot.
+	 */
+	boolean restore(Interpreter interpreter) {
+		try (FileChannel channel = FileChannel.open(path,
+				StandardOpenOption.READ)) {
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					channel.size());
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+				return false;
+			}
+			byte[] savedHash = new byte[hash.length];
+			buffer.get(savedHash);
+			if (!Arrays.equals(savedHash, hash)) return false;
+
+			Map<String, Object> globals = new Reader(buffer, interpreter).read();
+			if (buffer.hasRemaining()) return false;
+
+			for (Map.Entry<String, Object> global : globals.entrySet()) {
+				interpreter.globals.define(global.getKey(), global.getValue());
+			}
+			return true;
+		} catch (IOException | RuntimeException error) {
+			return false;
+		}
+	}
+
+	void save(Interpreter interpreter) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.write(hash);
+			new Writer(interpreter.globals).write(out);
+			out.flush();
+			ScriptCache.replace(path, bytes.toByteArray(), prelude);
+		} catch (IOException | RuntimeException error) {
+			// The next run executes the prelude again.
+		}
+	}
+
+	private static final class Writer {
+		private final Environment globals;
+		private final Map<Object, Integer> ids = new IdentityHashMap<>();
+		private final List<Object> objects = new ArrayList<>();
+		// Objects whose contents haven't been numbered yet.
+		private final ArrayDeque<Object> pending = new ArrayDeque<>();
+		private final Map<Object, String> natives = new IdentityHashMap<>();
+		private final Map<Stmt.Function, Integer> declarations =
+				new IdentityHashMap<>();
+		private final List<Stmt> declarationList = new ArrayList<>();
+
+		Writer(Environment globals) {
+			this.globals = globals;
+			for (Map.Entry<String, Object> global : globals.values().entrySet()) {
+				if (isNative(global.getValue())) {
+					natives.putIfAbsent(global.getValue(), global.getKey());
+				}
+			}
+		}
+
+		void write(DataOutputStream out) throws IOException {
+			id(globals);
+			while (!pending.isEmpty()) {
+				Object object = pending.poll();
+				if (object instanceof Environment) {
+					Environment environment = (Environment)object;
+					Object[] values = environment.values() != null
+							? environment.values().values().toArray()
+							: environment.locals();
+					for (Object value : values) reference(value);
+				} else if (object instanceof LoxInstance) {
+					for (Object value : ((LoxInstance)object).fields) {
+						reference(value);
+					}
+				}
+			}
+
+			new AstWriter().write(declarationList, out);
+
+			out.writeInt(objects.size());
+			for (Object object : objects) {
+				create(object, out);
+			}
+			for (Object object : objects) {
+				contents(object, out);
+			}
+		}
+
+		private void create(Object object, DataOutputStream out)
+				throws IOException {
+			if (object == globals) {
+				out.writeByte(GLOBALS);
+			} else if (object instanceof Environment) {
+				out.writeByte(ENVIRONMENT);
+				out.writeInt(ids.get(((Environment)object).enclosing));
+			} else if (object instanceof LoxFunction) {
+				LoxFunction function = (LoxFunction)object;
+				out.writeByte(FUNCTION);
+				out.writeInt(declarations.get(function.declaration));
+				out.writeInt(ids.get(function.closure));
+				out.writeBoolean(function.isInitializer);
+			} else if (object instanceof LoxClass) {
+				LoxClass klass = (LoxClass)object;
+				out.writeByte(CLASS);
+				string(klass.name, out);
+				out.writeInt(klass.superclass == null
+						? -1 : ids.get(klass.superclass));
+				out.writeInt(klass.methods.size());
+				for (Map.Entry<String, LoxFunction> method :
+						klass.methods.entrySet()) {
+					string(method.getKey(), out);
+					out.writeInt(ids.get(method.getValue()));
+				}
+			} else if (object instanceof LoxInstance) {
+				out.writeByte(INSTANCE);
+				out.writeInt(ids.get(((LoxInstance)object).klass));
+			} else {
+				out.writeByte(NATIVE);
+				string(natives.get(object), out);
+			}
+		}
+
+		private void contents(Object object, DataOutputStream out)
+				throws IOException {
+			if (object instanceof Environment) {
+				Environment environment = (Environment)object;
+				if (environment.values() != null) {
+					out.writeInt(environment.values().size());
+					for (Map.Entry<String, Object> value :
+							environment.values().entrySet()) {
+						string(value.getKey(), out);
+						value(value.getValue(), out);
+					}
+				} else {
+					Object[] locals = environment.locals();
+					out.writeInt(locals.length);
+					for (Object value : locals) value(value, out);
+				}
+			} else if (object instanceof LoxInstance) {
+				LoxInstance instance = (LoxInstance)object;
+				String[] names = instance.shape.fieldNames();
+				out.writeInt(names.length);
+				for (int i = 0; i < names.length; i++) {
+					string(names[i], out);
+					value(instance.fields[i], out);
+				}
+			}
+		}
+
+		private void value(Object value, DataOutputStream out)
+				throws IOException {
+			if (value == null) {
+				out.writeByte(NIL);
+			} else if (value instanceof Boolean) {
+				out.writeByte((Boolean)value ? TRUE : FALSE);
+			} else if (value instanceof Double) {
+				out.writeByte(NUMBER);
+				out.writeDouble((Double)value);
+			} else if (LazyString.isString(value)) {
+				out.writeByte(STRING);
+				string(value.toString(), out);
+			} else {
+				out.writeByte(OBJECT);
+				out.writeInt(ids.get(value));
+			}
+		}
+
+		private void reference(Object value) {
+			if (value != null && !(value instanceof Boolean) &&
+					!(value instanceof Double) && !LazyString.isString(value)) {
+				id(value);
+			}
+		}
+
+		/*
+		Numbers everything the object is created from before the object
+		itself, then queues it so what it contains is numbered later.
+		 */
+		private int id(Object object) {
+			Integer id = ids.get(object);
+			if (id != null) return id;
+
+			if (object instanceof Environment) {
+				Environment enclosing = ((Environment)object).enclosing;
+				if (object != globals) {
+					if (enclosing == null) {
+						throw new IllegalStateException("Unknown global scope.");
+					}
+					id(enclosing);
+				}
+			} else if (object.getClass() == LoxFunction.class) {
+				LoxFunction function = (LoxFunction)object;
+				id(function.closure);
+				if (!declarations.containsKey(function.declaration)) {
+					declarations.put(function.declaration, declarationList.size());
+					declarationList.add(function.declaration);
+				}
+			} else if (object instanceof LoxClass) {
+				LoxClass klass = (LoxClass)object;
+				if (klass.superclass != null) id(klass.superclass);
+				for (LoxFunction method : klass.methods.values()) id(method);
+			} else if (object instanceof LoxInstance) {
+				id(((LoxInstance)object).klass);
+			} else if (!natives.containsKey(object)) {
+				// A CompactFunction, or a native that no global names.
+				throw new IllegalStateException("Can't save " + object + ".");
+			}
+
+			id = objects.size();
+			ids.put(object, id);
+			objects.add(object);
+			pending.add(object);
+			return id;
+		}
+
+		private static boolean isNative(Object value) {
+			return value instanceof LoxCallable &&
+					!(value instanceof LoxFunction) && !(value instanceof LoxClass);
+		}
+
+		private static void string(String string, DataOutputStream out)
+				throws IOException {
+			byte[] utf8 = string.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(utf8.length);
+			out.write(utf8);
+		}
+	}
+
+	private static final class Reader {
+		private final ByteBuffer buffer;
+		private final Interpreter interpreter;
+		private Object[] objects;
+		// Dropped with the reader once the globals are restored.
+		private final Symbols symbols = new Symbols();
+
+		Reader(ByteBuffer buffer, Interpreter interpreter) {
+			this.buffer = buffer;
+			this.interpreter = interpreter;
+		}
+
+		// Returns the globals to define.
+		Map<String, Object> read() {
+			List<Stmt> declarations = new AstReader(buffer).read();
+
+			objects = new Object[count()];
+			for (int i = 0; i < objects.length; i++) {
+				objects[i] = create(declarations);
+			}
+			Map<String, Object> globals = new HashMap<>();
+			for (Object object : objects) {
+				contents(object, globals);
+			}
+			return globals;
+		}
+
+		private Object create(List<Stmt> declarations) {
+			byte kind = buffer.get();
+			switch (kind) {
+				case GLOBALS:
+					return interpreter.globals;
+				case ENVIRONMENT:
+					return new Environment((Environment)objects[buffer.getInt()]);
+				case FUNCTION: {
+					Stmt.Function declaration =
+							(Stmt.Function)declarations.get(buffer.getInt());
+					Environment closure = (Environment)objects[buffer.getInt()];
+					return new LoxFunction(declaration, closure, buffer.get() != 0);
+				}
+				case CLASS: {
+					String name = string();
+					int superclass = buffer.getInt();
+					Map<String, LoxFunction> methods = new HashMap<>();
+					for (int i = count(); i > 0; i--) {
+						methods.put(string(), (LoxFunction)objects[buffer.getInt()]);
+					}
+					return new LoxClass(name, superclass == -1
+							? null : (LoxClass)objects[superclass], methods);
+				}
+				case INSTANCE:
+					return new LoxInstance((LoxClass)objects[buffer.getInt()]);
+				case NATIVE:
+					return interpreter.globals.get(string(), 0);
+				default:
+					throw new IllegalStateException("Unknown object " + kind + ".");
+			}
+		}
+
+		/*
+		The saved globals are collected rather than defined right away, so a
+		snapshot that turns out to be damaged leaves the interpreter as it was.
+		 */
+		private void contents(Object object, Map<String, Object> globals) {
+			if (object == interpreter.globals) {
+				for (int i = count(); i > 0; i--) {
+					globals.put(string(), value());
+				}
+			} else if (object instanceof Environment) {
+				Environment environment = (Environment)object;
+				for (int i = count(); i > 0; i--) {
+					environment.define(value());
+				}
+			} else if (object instanceof LoxInstance) {
+				LoxInstance instance = (LoxInstance)object;
+				for (int i = count(); i > 0; i--) {
+					instance.set(string(), value());
+				}
+			}
+		}
+
+		private Object value() {
+			byte tag = buffer.get();
+			switch (tag) {
+				case NIL: return null;
+				case FALSE: return false;
+				case TRUE: return true;
+				case NUMBER: return buffer.getDouble();
+				case STRING: return string();
+				case OBJECT: return objects[buffer.getInt()];
+				default:
+					throw new IllegalStateException("Unknown value " + tag + ".");
+			}
+		}
+
+		private String string() {
+			byte[] utf8 = new byte[count()];
+			buffer.get(utf8);
+			return symbols.intern(new String(utf8, StandardCharsets.UTF_8));
+		}
+
+		// A size that has to fit in what is left of the buffer.
+		private int count() {
+			int count = buffer.getInt();
+			if (count < 0 || count > buffer.remaining()) {
+				throw new IllegalStateException("Bad size " + count + ".");
+			}
+			return count;
+		}
+	}
+}
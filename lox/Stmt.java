@@ -81,6 +81,8 @@ abstract class Stmt {
     final Token name;
     final List<Token> params;
     final List<Stmt> body;
+    JvmCode compiled;
+    boolean hasClosures;
   }
 //< stmt-function
 //> stmt-if
@@ -129,6 +131,7 @@ abstract class Stmt {
 
     final Token keyword;
     final Expr value;
+    boolean tailCall;
   }
 //< stmt-return
 //> stmt-var
@@ -0,0 +1,28 @@
+package lox.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+A symbol table. A Scanner passes every identifier and string literal
+through its own, so each distinct one exists as a single String however
+often it appears in the source. Name lookups in environments and method
+tables then usually succeed on identity alone, and two equal string
+literals are == to each other, which isEqual checks before comparing
+characters.
+
+A table lives as long as the scanner that made it, or the snapshot being
+read, and is dropped with it. A process-wide one would keep every name and
+literal of every script it ever loaded, which an embedder running script
+after script, or an editor rescanning on every keystroke, would never get
+back. Identity across sources is only a fast path; everything that relies
+on it falls back to comparing characters.
+ */
+final class Symbols {
+	private final Map<String, String> table = new HashMap<>();
+
+	String intern(String text) {
+		String symbol = table.putIfAbsent(text, text);
+		return symbol == null ? text : symbol;
+	}
+}
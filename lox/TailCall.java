@@ -0,0 +1,17 @@
+package lox.lox;
+
+/*
+What a function returns instead of making a call in tail position: the
+checked callee and its arguments. LoxFunction.call() makes the call once
+the returning function's frames are gone, so a chain of tail calls runs in
+a loop instead of growing the Java stack.
+ */
+class TailCall {
+	final LoxCallable callee;
+	final Object[] arguments;
+
+	TailCall(LoxCallable callee, Object[] arguments) {
+		this.callee = callee;
+		this.arguments = arguments;
+	}
+}
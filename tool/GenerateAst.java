@@ -14,20 +14,33 @@ public class GenerateAst {
 //        String outputDir = args[0];
         String outputDir = "lox";
 //>     call-define-ast
+        /*
+        Anything after a `|` is a mutable field that isn't part of the
+        constructor. The Resolver fills the variable nodes' ones in with the
+        scope depth and slot of the local they refer to, so the Interpreter can
+        read them straight off the node. A depth of -1 means a global.
+         */
         defineAst(outputDir, "Expr", Arrays.asList(
-                "Assign     : Token name, Expr value",
-                "Binary     : Expr left, Token operator, Expr right",
-                "Call       : Expr callee, Token paren, List<Expr> arguments",
-                "Get        : Expr object, Token name",
+                "Assign     : Token name, Expr value | int depth = -1, int slot",
+                "Binary     : Expr left, Token operator, Expr right" +
+                            " | BinarySpecialization specialization" +
+                            " = BinarySpecialization.UNINITIALIZED," +
+                            " Boolean numeric",
+                "Call       : Expr callee, Token paren, List<Expr> arguments" +
+                            " | LoxCallSite site",
+                "Get        : Expr object, Token name" +
+                            " | Shape cachedShape, int cachedSlot",
                 "Grouping   : Expr expression",
                 "Literal    : Object value",
                 "Logical    : Expr left, Token operator, Expr right",
-                "Set        : Expr object, Token name, Expr value",
-                "Super      : Token keyword, Token method",
-                "This       : Token keyword",
+                "Set        : Expr object, Token name, Expr value" +
+                            " | Shape cachedShape, Shape cachedTransition," +
+                            " int cachedSlot",
+                "Super      : Token keyword, Token method | int depth = -1, int slot",
+                "This       : Token keyword | int depth = -1, int slot",
 //>     Statement and State var-expr
                 "Unary      : Token operator, Expr right",
-                "Variable   : Token name"
+                "Variable   : Token name | int depth = -1, int slot"
 //<     Statement and State var-expr
         ));
 
@@ -39,12 +52,12 @@ public class GenerateAst {
                             " List<Stmt.Function> methods",
                 "Expression : Expr expression",
                 "Function   : Token name, List<Token> params," +
-                            " List<Stmt> body",
+                            " List<Stmt> body | JvmCode compiled, boolean hasClosures",
                 "If         : Expr condition, Stmt thenBranch," +
                             " Stmt elseBranch",
 //>     var-stmt-ast
                 "Print      : Expr expression",
-                "Return     : Token keyword, Expr value",
+                "Return     : Token keyword, Expr value | boolean tailCall",
                 "Var        : Token name, Expr initializer",
                 "While      : Expr condition, Stmt body"
 //<     var-stmt-ast
@@ -83,7 +96,12 @@ public class GenerateAst {
         for (String type : types) {
             String className = type.split(":")[0].trim();
             String fields = type.split(":")[1].trim(); // [robust]
-            defineType(writer, baseName, className, fields);
+            String mutableFields = null;
+            if (fields.contains("|")) {
+                mutableFields = fields.split("\\|")[1].trim();
+                fields = fields.split("\\|")[0].trim();
+            }
+            defineType(writer, baseName, className, fields, mutableFields);
         }
 //<     nested-classes
 //> base-accept-method
@@ -117,7 +135,7 @@ public class GenerateAst {
 //>     define-type
     private static void defineType(
             PrintWriter writer, String baseName,
-            String className, String fieldList) {
+            String className, String fieldList, String mutableFieldList) {
 //>     omit
         writer.println("//> " +
                 baseName.toLowerCase() + "-" + className.toLowerCase());
@@ -136,7 +154,7 @@ public class GenerateAst {
         writer.println("    " + className + "(" + fieldList + ") {");
 
 //>     omit
-        fieldList = fieldList.replace(",\n         ", ",");
+        fieldList = fieldList.replace(",\n         ", ", ");
 //<     omit
 
         // Store parameters in fields
@@ -165,6 +183,11 @@ public class GenerateAst {
             writer.println("    final " + field + ";");
         }
 
+        if (mutableFieldList != null) {
+            for (String field : mutableFieldList.split(", ")) {
+                writer.println("    " + field + ";");
+            }
+        }
 
         writer.println("  }");
 //>     omit
@@ -0,0 +1,73 @@
+package lox.vm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+A compiled sequence of instructions together with its constant pool. Every
+int written (opcodes and operands alike) remembers the source line it came
+from, so the VM can report runtime errors against the line of whatever it
+was decoding.
+ */
+public class Chunk {
+	int[] code = new int[64];
+	int[] lines = new int[64];
+	int count = 0;
+	Object[] constants;
+
+	private final List<Object> constantList = new ArrayList<>();
+	private final Map<Object, Integer> constantIndex = new HashMap<>();
+
+	public void write(int value, int line) {
+		if (count == code.length) {
+			int[] grownCode = new int[count * 2];
+			int[] grownLines = new int[count * 2];
+			System.arraycopy(code, 0, grownCode, 0, count);
+			System.arraycopy(lines, 0, grownLines, 0, count);
+			code = grownCode;
+			lines = grownLines;
+		}
+
+		code[count] = value;
+		lines[count] = line;
+		count++;
+	}
+
+	// Overwrites an already written operand, used to back-patch jump targets.
+	public void patch(int offset, int value) {
+		code[offset] = value;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	/*
+	Strings and numbers are deduplicated so a name used all over a function
+	only takes one constant slot. Functions are always added fresh.
+	 */
+	public int addConstant(Object value) {
+		boolean shareable = value instanceof String || value instanceof Double;
+		if (shareable && constantIndex.containsKey(value)) {
+			return constantIndex.get(value);
+		}
+
+		constantList.add(value);
+		int index = constantList.size() - 1;
+		if (shareable) constantIndex.put(value, index);
+		return index;
+	}
+
+	// Called once compilation is done to freeze the pool into an array.
+	void seal() {
+		if (constants != null) return;
+		constants = constantList.toArray();
+		for (Object constant : constants) {
+			if (constant instanceof VmFunction) {
+				((VmFunction) constant).chunk.seal();
+			}
+		}
+	}
+}
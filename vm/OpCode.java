@@ -0,0 +1,66 @@
+package lox.vm;
+
+/*
+The instruction set of the VM. Instructions live in a plain `int[]`, so an
+opcode is just an int and its operands follow it inline. Keeping them as int
+constants rather than an enum lets the dispatch loop switch on them directly.
+ */
+public final class OpCode {
+	// constant-index
+	public static final int CONSTANT = 0;
+	public static final int NIL = 1;
+	public static final int TRUE = 2;
+	public static final int FALSE = 3;
+	public static final int POP = 4;
+
+	// depth, slot
+	public static final int GET_LOCAL = 5;
+	public static final int SET_LOCAL = 6;
+	// slot (always in the current environment, pops the value)
+	public static final int DEFINE_LOCAL = 7;
+	// name-index
+	public static final int GET_GLOBAL = 8;
+	public static final int DEFINE_GLOBAL = 9;
+	public static final int SET_GLOBAL = 10;
+
+	// name-index
+	public static final int GET_PROPERTY = 11;
+	public static final int SET_PROPERTY = 12;
+	public static final int GET_SUPER = 13;
+
+	public static final int EQUAL = 14;
+	public static final int NOT_EQUAL = 15;
+	public static final int GREATER = 16;
+	public static final int GREATER_EQUAL = 17;
+	public static final int LESS = 18;
+	public static final int LESS_EQUAL = 19;
+	public static final int ADD = 20;
+	public static final int SUBTRACT = 21;
+	public static final int MULTIPLY = 22;
+	public static final int DIVIDE = 23;
+	public static final int NOT = 24;
+	public static final int NEGATE = 25;
+
+	public static final int PRINT = 26;
+
+	// absolute target
+	public static final int JUMP = 27;
+	public static final int JUMP_IF_FALSE = 28;
+	// argument-count
+	public static final int CALL = 29;
+	// function-constant-index
+	public static final int CLOSURE = 30;
+	public static final int RETURN = 31;
+
+	// name-index
+	public static final int CLASS = 32;
+	public static final int INHERIT = 33;
+	// name-index
+	public static final int METHOD = 34;
+
+	// slot-count
+	public static final int PUSH_ENV = 35;
+	public static final int POP_ENV = 36;
+
+	private OpCode() {}
+}
@@ -0,0 +1,473 @@
+package lox.vm;
+
+import lox.lox.OutputSink;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+A stack-based virtual machine for compiled Lox code. All instructions run
+inside the single loop in run(): operands and temporaries live on one value
+stack, and each Lox call pushes a CallFrame instead of recursing in Java. The
+VM keeps its globals between calls to interpret(), so the REPL can feed it one
+line at a time.
+ */
+public class VM {
+	private static final int FRAMES_MAX = 1 << 16;
+
+	private static final class CallFrame {
+		VmClosure closure;
+		int ip;
+		VmEnvironment environment;
+		// Stack index of the callee, where the return value ends up.
+		int base;
+	}
+
+	private final Map<String, Object> globals = new HashMap<>();
+	private Object[] stack = new Object[256];
+	private int sp = 0;
+	private CallFrame[] frames = new CallFrame[64];
+	private int frameCount = 0;
+	private final OutputSink output;
+
+	public VM() {
+		this(OutputSink.standardOutput());
+	}
+
+	public VM(OutputSink output) {
+		this.output = output;
+		globals.put("clock", new VmNative(0, arguments ->
+				(double)System.currentTimeMillis() / 1000.0));
+	}
+
+	public void interpret(VmFunction script) {
+		script.chunk.seal();
+		sp = 0;
+		frameCount = 0;
+
+		VmClosure closure = new VmClosure(script, null);
+		push(closure);
+		CallFrame frame = pushFrame();
+		frame.closure = closure;
+		frame.ip = 0;
+		frame.environment = null;
+		frame.base = 0;
+
+		run();
+	}
+
+	private void run() {
+		CallFrame frame = frames[frameCount - 1];
+		int[] code = frame.closure.function.chunk.code;
+		Object[] constants = frame.closure.function.chunk.constants;
+		int ip = frame.ip;
+		VmEnvironment environment = frame.environment;
+
+		for (;;) {
+			switch (code[ip++]) {
+				case OpCode.CONSTANT:
+					push(constants[code[ip++]]);
+					break;
+				case OpCode.NIL: push(null); break;
+				case OpCode.TRUE: push(true); break;
+				case OpCode.FALSE: push(false); break;
+				case OpCode.POP: sp--; break;
+
+				case OpCode.GET_LOCAL: {
+					int depth = code[ip++];
+					push(environment.ancestor(depth).slots[code[ip++]]);
+					break;
+				}
+				case OpCode.SET_LOCAL: {
+					int depth = code[ip++];
+					environment.ancestor(depth).slots[code[ip++]] = peek(0);
+					break;
+				}
+				case OpCode.DEFINE_LOCAL:
+					environment.slots[code[ip++]] = pop();
+					break;
+
+				case OpCode.GET_GLOBAL: {
+					String name = (String) constants[code[ip++]];
+					Object value = globals.get(name);
+					if (value == null && !globals.containsKey(name)) {
+						throw error(frame, ip,
+								"Undefined variable '" + name + "'.");
+					}
+					push(value);
+					break;
+				}
+				case OpCode.DEFINE_GLOBAL:
+					globals.put((String) constants[code[ip++]], pop());
+					break;
+				case OpCode.SET_GLOBAL: {
+					String name = (String) constants[code[ip++]];
+					if (!globals.containsKey(name)) {
+						throw error(frame, ip,
+								"Undefined variable '" + name + ";.");
+					}
+					globals.put(name, peek(0));
+					break;
+				}
+
+				case OpCode.GET_PROPERTY: {
+					String name = (String) constants[code[ip++]];
+					Object object = pop();
+					if (!(object instanceof VmInstance)) {
+						throw error(frame, ip, "Only instances have properties.");
+					}
+
+					VmInstance instance = (VmInstance) object;
+					Object value = instance.fields.get(name);
+					if (value != null || instance.fields.containsKey(name)) {
+						push(value);
+						break;
+					}
+
+					VmClosure method = instance.klass.methods.get(name);
+					if (method == null) {
+						throw error(frame, ip,
+								"Undefined property '" + name + "'.");
+					}
+					push(new VmBoundMethod(instance, method));
+					break;
+				}
+				case OpCode.SET_PROPERTY: {
+					String name = (String) constants[code[ip++]];
+					Object value = pop();
+					Object object = pop();
+					if (!(object instanceof VmInstance)) {
+						throw error(frame, ip, "Only instances have fields.");
+					}
+
+					((VmInstance) object).fields.put(name, value);
+					push(value);
+					break;
+				}
+				case OpCode.GET_SUPER: {
+					String name = (String) constants[code[ip++]];
+					VmClass superclass = (VmClass) pop();
+					VmInstance receiver = (VmInstance) pop();
+					VmClosure method = superclass.methods.get(name);
+					if (method == null) {
+						throw error(frame, ip,
+								"Undefined property '" + name + "'.");
+					}
+					push(new VmBoundMethod(receiver, method));
+					break;
+				}
+
+				case OpCode.EQUAL: {
+					Object right = pop();
+					push(isEqual(pop(), right));
+					break;
+				}
+				case OpCode.NOT_EQUAL: {
+					Object right = pop();
+					push(!isEqual(pop(), right));
+					break;
+				}
+				case OpCode.GREATER: {
+					checkNumberOperands(frame, ip);
+					double right = (double) pop();
+					push((double) pop() > right);
+					break;
+				}
+				case OpCode.GREATER_EQUAL: {
+					checkNumberOperands(frame, ip);
+					double right = (double) pop();
+					push((double) pop() >= right);
+					break;
+				}
+				case OpCode.LESS: {
+					checkNumberOperands(frame, ip);
+					double right = (double) pop();
+					push((double) pop() < right);
+					break;
+				}
+				case OpCode.LESS_EQUAL: {
+					checkNumberOperands(frame, ip);
+					double right = (double) pop();
+					push((double) pop() <= right);
+					break;
+				}
+				case OpCode.ADD: {
+					Object right = pop();
+					Object left = pop();
+					if (left instanceof Double && right instanceof Double) {
+						push((double) left + (double) right);
+					} else if (left instanceof String && right instanceof String) {
+						push((String) left + (String) right);
+					} else {
+						throw error(frame, ip,
+								"Operands must be two numbers or two strings");
+					}
+					break;
+				}
+				case OpCode.SUBTRACT: {
+					// Mirrors the Interpreter, which checks the right operand first.
+					if (!(peek(0) instanceof Double)) {
+						throw error(frame, ip, "Operand must be a number.");
+					}
+					checkNumberOperands(frame, ip);
+					double right = (double) pop();
+					push((double) pop() - right);
+					break;
+				}
+				case OpCode.MULTIPLY: {
+					checkNumberOperands(frame, ip);
+					double right = (double) pop();
+					push((double) pop() * right);
+					break;
+				}
+				case OpCode.DIVIDE: {
+					checkNumberOperands(frame, ip);
+					double right = (double) pop();
+					push((double) pop() / right);
+					break;
+				}
+				case OpCode.NOT:
+					push(!isTruthy(pop()));
+					break;
+				case OpCode.NEGATE:
+					if (!(peek(0) instanceof Double)) {
+						throw error(frame, ip, "Operand must be a number.");
+					}
+					push(-(double) pop());
+					break;
+
+				case OpCode.PRINT:
+					output.println(stringify(pop()));
+					break;
+
+				case OpCode.JUMP:
+					ip = code[ip];
+					break;
+				case OpCode.JUMP_IF_FALSE:
+					if (!isTruthy(peek(0))) {
+						ip = code[ip];
+					} else {
+						ip++;
+					}
+					break;
+
+				case OpCode.CALL: {
+					int argCount = code[ip++];
+					frame.ip = ip;
+					frame.environment = environment;
+					callValue(frame, ip, argCount);
+
+					frame = frames[frameCount - 1];
+					code = frame.closure.function.chunk.code;
+					constants = frame.closure.function.chunk.constants;
+					ip = frame.ip;
+					environment = frame.environment;
+					break;
+				}
+				case OpCode.CLOSURE: {
+					VmFunction function = (VmFunction) constants[code[ip++]];
+					push(new VmClosure(function, environment));
+					break;
+				}
+				case OpCode.RETURN: {
+					Object result = pop();
+					frameCount--;
+					if (frameCount == 0) {
+						sp = 0;
+						return;
+					}
+
+					sp = frame.base;
+					push(result);
+
+					frame = frames[frameCount - 1];
+					code = frame.closure.function.chunk.code;
+					constants = frame.closure.function.chunk.constants;
+					ip = frame.ip;
+					environment = frame.environment;
+					break;
+				}
+
+				case OpCode.CLASS:
+					push(new VmClass((String) constants[code[ip++]]));
+					break;
+				case OpCode.INHERIT: {
+					Object superclass = pop();
+					VmClass subclass = (VmClass) peek(0);
+					if (!(superclass instanceof VmClass)) {
+						throw error(frame, ip, "Superclass must be a class.");
+					}
+
+					subclass.methods.putAll(((VmClass) superclass).methods);
+					subclass.initializer = ((VmClass) superclass).initializer;
+					break;
+				}
+				case OpCode.METHOD: {
+					String name = (String) constants[code[ip++]];
+					VmClosure method = (VmClosure) pop();
+					VmClass klass = (VmClass) peek(0);
+					klass.methods.put(name, method);
+					if (name.equals("init")) klass.initializer = method;
+					break;
+				}
+
+				case OpCode.PUSH_ENV:
+					environment = new VmEnvironment(environment, code[ip++]);
+					break;
+				case OpCode.POP_ENV:
+					environment = environment.enclosing;
+					break;
+
+				default:
+					throw error(frame, ip, "Unknown opcode " + code[ip - 1] + ".");
+			}
+		}
+	}
+
+	/*
+	Calls either start a new frame (for closures) or complete right away (for
+	natives and classes without an initializer). The callee and its arguments
+	sit on top of the stack.
+	 */
+	private void callValue(CallFrame frame, int ip, int argCount) {
+		Object callee = stack[sp - argCount - 1];
+
+		if (callee instanceof VmClosure) {
+			call(frame, ip, (VmClosure) callee, null, argCount);
+		} else if (callee instanceof VmBoundMethod) {
+			VmBoundMethod bound = (VmBoundMethod) callee;
+			call(frame, ip, bound.method, bound.receiver, argCount);
+		} else if (callee instanceof VmClass) {
+			VmClass klass = (VmClass) callee;
+			VmInstance instance = new VmInstance(klass);
+			stack[sp - argCount - 1] = instance;
+			if (klass.initializer != null) {
+				call(frame, ip, klass.initializer, instance, argCount);
+			} else if (argCount != 0) {
+				throw error(frame, ip, "Expected 0 arguments but got " +
+						argCount + ".");
+			}
+		} else if (callee instanceof VmNative) {
+			VmNative function = (VmNative) callee;
+			checkArity(frame, ip, function.arity, argCount);
+			Object[] arguments = new Object[argCount];
+			System.arraycopy(stack, sp - argCount, arguments, 0, argCount);
+			sp -= argCount + 1;
+			push(function.body.call(arguments));
+		} else {
+			throw error(frame, ip, "Can only call functions and classes.");
+		}
+	}
+
+	private void call(CallFrame frame, int ip, VmClosure closure,
+	                  VmInstance receiver, int argCount) {
+		VmFunction function = closure.function;
+		checkArity(frame, ip, function.arity, argCount);
+
+		if (frameCount == FRAMES_MAX) {
+			throw error(frame, ip, "Stack overflow.");
+		}
+
+		/*
+		Like LoxFunction.bind(), a method call gets an extra environment holding
+		"this" between the closure and the function's own scope.
+		 */
+		VmEnvironment enclosing = closure.environment;
+		if (receiver != null) {
+			enclosing = new VmEnvironment(enclosing, 1);
+			enclosing.slots[0] = receiver;
+		}
+
+		VmEnvironment environment =
+				new VmEnvironment(enclosing, function.localCount);
+		System.arraycopy(stack, sp - argCount, environment.slots, 0, argCount);
+		sp -= argCount + 1;
+
+		CallFrame callee = pushFrame();
+		callee.closure = closure;
+		callee.ip = 0;
+		callee.environment = environment;
+		callee.base = sp;
+	}
+
+	private void checkArity(CallFrame frame, int ip, int arity, int argCount) {
+		if (argCount != arity) {
+			throw error(frame, ip, "Expected " + arity +
+					" arguments but got " + argCount + ".");
+		}
+	}
+
+	private CallFrame pushFrame() {
+		if (frameCount == frames.length) {
+			CallFrame[] grown = new CallFrame[frameCount * 2];
+			System.arraycopy(frames, 0, grown, 0, frameCount);
+			frames = grown;
+		}
+
+		CallFrame frame = frames[frameCount];
+		if (frame == null) {
+			frame = new CallFrame();
+			frames[frameCount] = frame;
+		}
+		frameCount++;
+		return frame;
+	}
+
+	private void push(Object value) {
+		if (sp == stack.length) {
+			Object[] grown = new Object[sp * 2];
+			System.arraycopy(stack, 0, grown, 0, sp);
+			stack = grown;
+		}
+		stack[sp++] = value;
+	}
+
+	private Object pop() {
+		Object value = stack[--sp];
+		stack[sp] = null;
+		return value;
+	}
+
+	private Object peek(int distance) {
+		return stack[sp - 1 - distance];
+	}
+
+	private void checkNumberOperands(CallFrame frame, int ip) {
+		if (peek(0) instanceof Double && peek(1) instanceof Double) return;
+
+		throw error(frame, ip, "Operands must be numbers.");
+	}
+
+	private VmRuntimeError error(CallFrame frame, int ip, String message) {
+		int line = frame.closure.function.chunk.lines[ip - 1];
+		sp = 0;
+		frameCount = 0;
+		return new VmRuntimeError(message, line);
+	}
+
+	private static boolean isTruthy(Object object) {
+		if (object == null) return false;
+		if (object instanceof Boolean) return (boolean) object;
+		return true;
+	}
+
+	private static boolean isEqual(Object a, Object b) {
+		if (a == null && b == null) return true;
+		if (a == null) return false;
+
+		return a.equals(b);
+	}
+
+	private static String stringify(Object object) {
+		if (object == null) return "nil";
+
+		if (object instanceof Double) {
+			String text = object.toString();
+			if (text.endsWith(".0")) {
+				text = text.substring(0, text.length() - 2);
+			}
+			return text;
+		}
+		return object.toString();
+	}
+}
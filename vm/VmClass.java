@@ -0,0 +1,24 @@
+package lox.vm;
+
+import java.util.HashMap;
+import java.util.Map;
+
+final class VmClass {
+	final String name;
+	/*
+	Inherited methods are copied down when the class is created, before its
+	own methods are added, so overriding falls out of the map semantics and a
+	lookup never has to walk the superclass chain.
+	 */
+	final Map<String, VmClosure> methods = new HashMap<>();
+	VmClosure initializer;
+
+	VmClass(String name) {
+		this.name = name;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
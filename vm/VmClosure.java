@@ -0,0 +1,16 @@
+package lox.vm;
+
+final class VmClosure {
+	final VmFunction function;
+	final VmEnvironment environment;
+
+	VmClosure(VmFunction function, VmEnvironment environment) {
+		this.function = function;
+		this.environment = environment;
+	}
+
+	@Override
+	public String toString() {
+		return function.toString();
+	}
+}
@@ -0,0 +1,26 @@
+package lox.vm;
+
+/*
+The VM keeps locals in the same layout the tree-walking Interpreter uses: one
+environment per scope, with variables at the slots the Resolver assigned. That
+way the compiler can emit the resolved (depth, slot) pairs as they are, and
+closures simply capture the environment they were created in.
+ */
+final class VmEnvironment {
+	final VmEnvironment enclosing;
+	final Object[] slots;
+
+	VmEnvironment(VmEnvironment enclosing, int size) {
+		this.enclosing = enclosing;
+		this.slots = new Object[size];
+	}
+
+	VmEnvironment ancestor(int distance) {
+		VmEnvironment environment = this;
+		for (int i = 0; i < distance; i++) {
+			environment = environment.enclosing;
+		}
+
+		return environment;
+	}
+}
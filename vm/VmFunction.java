@@ -0,0 +1,25 @@
+package lox.vm;
+
+/*
+The compiled form of a function declaration. It holds no runtime state; a
+VmClosure pairs it with the environment it was declared in.
+ */
+public class VmFunction {
+	final String name;
+	final int arity;
+	// Number of slots in the environment a call to this function creates.
+	final int localCount;
+	final Chunk chunk;
+
+	public VmFunction(String name, int arity, int localCount, Chunk chunk) {
+		this.name = name;
+		this.arity = arity;
+		this.localCount = localCount;
+		this.chunk = chunk;
+	}
+
+	@Override
+	public String toString() {
+		return "<fn " + name + ">";
+	}
+}
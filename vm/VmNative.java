@@ -0,0 +1,20 @@
+package lox.vm;
+
+final class VmNative {
+	interface Body {
+		Object call(Object[] arguments);
+	}
+
+	final int arity;
+	final Body body;
+
+	VmNative(int arity, Body body) {
+		this.arity = arity;
+		this.body = body;
+	}
+
+	@Override
+	public String toString() {
+		return "<native fn>";
+	}
+}
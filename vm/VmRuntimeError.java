@@ -0,0 +1,12 @@
+package lox.vm;
+
+public class VmRuntimeError extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	public final int line;
+
+	VmRuntimeError(String message, int line) {
+		super(message);
+		this.line = line;
+	}
+}